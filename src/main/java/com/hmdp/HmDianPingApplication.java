@@ -4,12 +4,14 @@ import org.mybatis.spring.annotation.MapperScan;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.EnableAspectJAutoProxy;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
 
 
 @MapperScan("com.hmdp.mapper")
 @SpringBootApplication
 @EnableAspectJAutoProxy(exposeProxy = true)
+@EnableScheduling
 public class HmDianPingApplication {
 
     public static void main(String[] args) {
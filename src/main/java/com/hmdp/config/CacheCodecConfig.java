@@ -0,0 +1,23 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.CompressingCacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.KryoCacheCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class CacheCodecConfig {
+    @Bean
+    @ConditionalOnMissingBean(CacheCodec.class)
+    public CacheCodec cacheCodec(@Value("${hmdp.cache.codec:json}") String codec,
+                                 @Value("${hmdp.cache.compress-threshold:0}") int compressThreshold) {
+        // 缓存值的编码方式，json或kryo
+        CacheCodec cacheCodec = "kryo".equalsIgnoreCase(codec) ? new KryoCacheCodec() : new JsonCacheCodec();
+        // 超过阈值的缓存值压缩后保存，0表示不压缩
+        return compressThreshold > 0 ? new CompressingCacheCodec(cacheCodec, compressThreshold) : cacheCodec;
+    }
+}
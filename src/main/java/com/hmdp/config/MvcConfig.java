@@ -1,18 +1,31 @@
 package com.hmdp.config;
 
 import com.hmdp.utils.LoginInterceptor;
+import com.hmdp.utils.LoginSessionCache;
+import com.hmdp.utils.RateLimitInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import com.hmdp.utils.SignedTokenManager;
+import com.hmdp.utils.SlidingWindowRateLimiter;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
 
 @Configuration
 public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private LoginSessionCache loginSessionCache;
+    @Resource
+    private SignedTokenManager signedTokenManager;
+    @Resource
+    private SlidingWindowRateLimiter slidingWindowRateLimiter;
+    @Resource
+    private RateLimitProperties rateLimitProperties;
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         registry.addInterceptor(new LoginInterceptor(stringRedisTemplate))
@@ -26,6 +39,11 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/blog/hot"
                 ).order(1);
         // 默认拦截所有请求
-        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).addPathPatterns("/**").order(0);
+        registry.addInterceptor(new RefreshTokenInterceptor(loginSessionCache, signedTokenManager)).addPathPatterns("/**").order(0);
+        // 限流，只拦截配置了规则的接口，在其他拦截器之前执行
+        if(rateLimitProperties.isEnabled() && !rateLimitProperties.getRules().isEmpty()) {
+            registry.addInterceptor(new RateLimitInterceptor(slidingWindowRateLimiter, rateLimitProperties.getIpHeader()))
+                    .addPathPatterns(new ArrayList<>(rateLimitProperties.getRules().keySet())).order(-1);
+        }
     }
 }
@@ -0,0 +1,38 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 限流配置，hmdp.rate-limit
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.rate-limit")
+public class RateLimitProperties {
+    // 是否开启限流
+    private boolean enabled = false;
+    // 本地预过滤，每个IP每秒在本节点最多请求多少次，超过时直接拒绝，不访问redis，0表示不过滤
+    private int localIpQps = 0;
+    // 从哪个请求头获取客户端IP，nginx转发时为X-Real-IP，为空时使用连接的地址
+    // X-Forwarded-For只使用最后一个地址，即离服务最近的代理看到的地址
+    private String ipHeader;
+    // 每个接口的限流规则，key是接口路径，支持Ant风格的通配符
+    private Map<String, Rule> rules = new LinkedHashMap<>();
+
+    @Data
+    public static class Rule {
+        // 每个IP在窗口内最多请求多少次，0表示不限制
+        private int ipLimit;
+        // IP的窗口长度，单位秒
+        private long ipWindow = 60;
+        // 每个手机号在窗口内最多请求多少次，0表示不限制
+        private int phoneLimit;
+        // 手机号的窗口长度，单位秒
+        private long phoneWindow = 60;
+    }
+}
@@ -0,0 +1,55 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheWarmer;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 缓存管理
+ * </p>
+ */
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private CacheWarmer cacheWarmer;
+
+    /**
+     * 查询缓存的命中率
+     * @return 本地缓存和redis的命中次数、命中率
+     */
+    @GetMapping("/stats")
+    public Result queryStats() {
+        return Result.ok(cacheClient.stats());
+    }
+
+    /**
+     * 查询当前的热点key
+     * @param limit 返回的数量
+     * @return 热点key和估计的访问次数，按访问次数倒序
+     */
+    @GetMapping("/hot-keys")
+    public Result queryHotKeys(@RequestParam(value = "limit", defaultValue = "10") Integer limit) {
+        return Result.ok(cacheClient.hotKeys(limit));
+    }
+
+    /**
+     * 查询缓存预热的进度
+     * @return 预热状态、需要预热和已经预热的数量
+     */
+    @GetMapping("/warm-up")
+    public Result queryWarmUp() {
+        return Result.ok(cacheWarmer.progress());
+    }
+}
@@ -60,9 +60,9 @@ public class UserController {
      * @return 无
      */
     @PostMapping("/logout")
-    public Result logout(){
-        // TODO 实现登出功能
-        return Result.fail("功能未完成");
+    public Result logout(@RequestHeader("authorization") String token){
+        // 删除token，各节点的本地缓存通过发布订阅删除
+        return userService.logout(token);
     }
 
     @GetMapping("/me")
@@ -73,6 +73,22 @@ public class UserController {
         // return Result.fail("功能未完成");
     }
 
+    /**
+     * 签到，每个用户每个月一个位图，每天一位
+     */
+    @PostMapping("/sign")
+    public Result sign(){
+        return userService.sign();
+    }
+
+    /**
+     * 本月截至今天的连续签到天数
+     */
+    @GetMapping("/sign/count")
+    public Result signCount(){
+        return userService.signCount();
+    }
+
     @GetMapping("/info/{id}")
     public Result info(@PathVariable("id") Long userId){
         // 查询详情
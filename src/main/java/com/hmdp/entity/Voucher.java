@@ -78,6 +78,12 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private Integer stock;
 
+    /**
+     * 秒杀库存分片数，大于1时库存拆分到多个redis key
+     */
+    @TableField(exist = false)
+    private Integer stockShards;
+
     /**
      * 生效时间
      */
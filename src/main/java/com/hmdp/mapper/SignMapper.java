@@ -0,0 +1,16 @@
+package com.hmdp.mapper;
+
+import com.hmdp.entity.Sign;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+
+/**
+ * <p>
+ *  Mapper 接口
+ * </p>
+ *
+ * @author 虎哥
+ * @since 2021-12-22
+ */
+public interface SignMapper extends BaseMapper<Sign> {
+
+}
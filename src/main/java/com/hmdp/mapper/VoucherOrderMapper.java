@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,17 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 写入订单，用户已经购买过（唯一索引冲突）或者订单已经写入过时忽略
+     * @param order 订单
+     * @return 写入的行数，0表示重复订单
+     */
+    int insertIgnore(VoucherOrder order);
+
+    /**
+     * 多行insert批量写入订单，重复的订单忽略
+     * @param orders 订单列表，不能为空
+     * @return 实际写入的行数
+     */
+    int insertIgnoreBatch(@Param("orders") List<VoucherOrder> orders);
 }
@@ -0,0 +1,17 @@
+package com.hmdp.service;
+
+import com.hmdp.entity.Sign;
+import com.baomidou.mybatisplus.extension.service.IService;
+
+/**
+ * <p>
+ *  服务类
+ * </p>
+ *
+ * @author 虎哥
+ * @since 2021-12-22
+ */
+public interface ISignService extends IService<Sign> {
+
+    void compactFinishedMonths();
+}
@@ -8,21 +8,29 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
+import com.baomidou.mybatisplus.core.conditions.update.UpdateWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisBloomFilter;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
 import java.time.LocalDateTime;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 import com.hmdp.utils.RedisData;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /**
  * <p>
@@ -40,19 +48,87 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    // 是否用布隆过滤器拦截不存在的商户id
+    @Value("${hmdp.bloom.shop.enabled:false}")
+    private boolean bloomEnabled;
+    // 预计的商户数量
+    @Value("${hmdp.bloom.shop.expected-insertions:1000000}")
+    private long bloomExpectedInsertions;
+    // 期望的误判率
+    @Value("${hmdp.bloom.shop.fpp:0.01}")
+    private double bloomFpp;
+
+    // 商户缓存是否使用逻辑过期，最好同时开启预热，未预热的商户第一次查询时从数据库加载
+    @Value("${hmdp.cache.shop-logical-expire:false}")
+    private boolean shopLogicalExpire;
+
+    // 商户id的布隆过滤器
+    private RedisBloomFilter shopBloomFilter;
+
+    // 构建布隆过滤器时每次查询的id数量
+    private static final int BLOOM_BATCH_SIZE = 1000;
+
+    @PostConstruct
+    private void init() {
+        // 商户缓存带版本号，旧数据不会覆盖新数据
+        cacheClient.registerVersion(CACHE_SHOP_KEY, Shop.class, shop -> shop.getVersion() == null ? 0 : shop.getVersion());
+        initBloomFilter();
+    }
+
+    private void initBloomFilter() {
+        if(!bloomEnabled) {
+            return;
+        }
+        shopBloomFilter = new RedisBloomFilter(stringRedisTemplate, BLOOM_SHOP_KEY, bloomExpectedInsertions, bloomFpp);
+        // 异步构建，构建完成前不拦截
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.execute(() -> {
+            try {
+                shopBloomFilter.init(this::loadShopIds);
+                log.debug("商户布隆过滤器构建完成，位数：" + shopBloomFilter.getNumBits() + "，哈希函数个数：" + shopBloomFilter.getNumHashes());
+            } catch (Exception e) {
+                log.error("构建商户布隆过滤器异常", e);
+            }
+        });
+        executor.shutdown();
+    }
+
+    // 分批查询所有商户id，放入布隆过滤器 select id from tb_shop where id > ? order by id limit 1000
+    private void loadShopIds() {
+        long lastId = 0;
+        while(true) {
+            List<Long> ids = query().select("id").gt("id", lastId).orderByAsc("id")
+                    .last("limit " + BLOOM_BATCH_SIZE).list()
+                    .stream().map(Shop::getId).collect(Collectors.toList());
+            shopBloomFilter.addAll(ids);
+            if(ids.size() < BLOOM_BATCH_SIZE) {
+                return;
+            }
+            lastId = ids.get(ids.size() - 1);
+        }
+    }
+
     // 线程池
 
     @Override
     public Result queryById(Long id) {
+        // 布隆过滤器判断不存在的商户，不再查询redis和数据库
+        if(shopBloomFilter != null && !shopBloomFilter.mightContain(id)) {
+            return Result.fail("商户不存在");
+        }
 
-        // 缓存穿透
-        // Shop shop = queryWithPassThrough(id);
-        Shop shop = cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        // 互斥锁解决缓存击穿
-        // Shop shop = queryWithMutex(id);
-        // 逻辑过期解决缓存穿透
-        // Shop shop = queryWithLogicalExpire(id);
-        // Shop shop = cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        Shop shop;
+        if(!shopLogicalExpire) {
+            // 缓存穿透
+            // Shop shop = queryWithPassThrough(id);
+            shop = cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        } else {
+            // 互斥锁解决缓存击穿
+            // Shop shop = queryWithMutex(id);
+            // 逻辑过期解决缓存穿透，需要提前预热
+            // Shop shop = queryWithLogicalExpire(id);
+            shop = cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        }
         if (shop == null) {
             return Result.fail("商户不存在");
         }
@@ -61,18 +137,59 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     }
 
 
+    @Override
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+        // 加入布隆过滤器
+        if(shopBloomFilter != null) {
+            shopBloomFilter.add(shop.getId());
+        }
+        // 逻辑过期的缓存直接写入
+        if(shopLogicalExpire) {
+            cacheClient.setWithLogicalExpire(CACHE_SHOP_KEY+shop.getId(), shop, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        }
+        return Result.ok(shop.getId());
+    }
+
     @Override
     @Transactional
     public Result update(Shop shop) {
         Long id = shop.getId();
         if (id == null) return Result.fail("商户id为空");
-        // 更新数据库
-        updateById(shop);
-        // 删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY+id);
+        // 更新数据库，版本号加1
+        shop.setVersion(null);
+        update(shop, new UpdateWrapper<Shop>().setSql("version = version + 1").eq("id", id));
+        // 事务提交后用新数据覆盖缓存，同时删除各节点的本地缓存
+        // 带版本号写入，并发查询到旧数据的线程不能再把旧数据写回缓存，不用删除缓存
+        afterCommit(() -> {
+            Shop latest = getById(id);
+            if(latest == null) {
+                cacheClient.delete(CACHE_SHOP_KEY+id);
+            } else if(shopLogicalExpire) {
+                // 逻辑过期的缓存不会自动过期，直接写入新数据
+                cacheClient.setWithLogicalExpire(CACHE_SHOP_KEY+id, latest, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            } else {
+                cacheClient.set(CACHE_SHOP_KEY+id, latest, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            }
+        });
         return Result.ok();
     }
 
+    // 在事务提交后执行，没有事务时直接执行
+    private void afterCommit(Runnable action) {
+        if(!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
     /*
     // 互斥锁解决缓存击穿
     public Shop queryWithMutex(Long id) {
@@ -0,0 +1,146 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Sign;
+import com.hmdp.mapper.SignMapper;
+import com.hmdp.service.ISignService;
+import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.LOCK_SIGN_COMPACT_KEY;
+import static com.hmdp.utils.RedisConstants.USER_SIGN_KEY;
+
+/**
+ * <p>
+ *  服务实现类
+ * </p>
+ *
+ * @author 虎哥
+ * @since 2021-12-22
+ */
+@Slf4j
+@Service
+public class SignServiceImpl extends ServiceImpl<SignMapper, Sign> implements ISignService {
+    // 签到key中的月份 sign:{userId}:yyyyMM
+    private static final DateTimeFormatter MONTH_FORMATTER = DateTimeFormatter.ofPattern("yyyyMM");
+
+    // 每批压缩多少个用户的签到位图
+    @Value("${hmdp.sign.compact-batch-size:500}")
+    private int compactBatchSize;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    /**
+     * 把已经结束的月份的签到位图写入tb_sign，然后删除位图
+     * 同一个用户同一个月先删除再插入，中途失败后重新执行不会重复写入
+     */
+    @Override
+    @Scheduled(cron = "${hmdp.sign.compact-cron:0 30 3 * * ?}")
+    public void compactFinishedMonths() {
+        // 多个节点只有一个执行
+        RLock lock = redissonClient.getLock(LOCK_SIGN_COMPACT_KEY);
+        if(!lock.tryLock()) {
+            return;
+        }
+        String currentMonth = LocalDate.now().format(MONTH_FORMATTER);
+        int total = 0;
+        ScanOptions options = ScanOptions.scanOptions().match(USER_SIGN_KEY + "*").count(1000).build();
+        try (Cursor<byte[]> cursor = stringRedisTemplate.executeWithStickyConnection(connection -> connection.scan(options))) {
+            List<String> batch = new ArrayList<>(compactBatchSize);
+            while (cursor.hasNext()) {
+                String key = new String(cursor.next(), StandardCharsets.UTF_8);
+                String month = key.substring(key.lastIndexOf(':') + 1);
+                // 只压缩已经结束的月份
+                if(month.length() != 6 || month.compareTo(currentMonth) >= 0) {
+                    continue;
+                }
+                batch.add(key);
+                if(batch.size() >= compactBatchSize) {
+                    total += compact(batch);
+                    batch.clear();
+                }
+            }
+            if(!batch.isEmpty()) {
+                total += compact(batch);
+            }
+            log.debug("压缩了{}个签到位图", total);
+        } catch (IOException e) {
+            log.error("关闭签到位图的scan游标失败", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int compact(List<String> keys) {
+        // 一个pipeline读出这一批位图
+        List<Object> bitmaps = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.get(key.getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        }, RedisSerializer.byteArray());
+        List<Sign> signs = new ArrayList<>();
+        // 每个月份包含的用户
+        Map<YearMonth, List<Long>> users = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] bitmap = (byte[]) bitmaps.get(i);
+            if(bitmap == null) {
+                continue;
+            }
+            String[] parts = keys.get(i).substring(USER_SIGN_KEY.length()).split(":");
+            Long userId = Long.valueOf(parts[0]);
+            YearMonth month = YearMonth.parse(parts[1], MONTH_FORMATTER);
+            users.computeIfAbsent(month, m -> new ArrayList<>()).add(userId);
+            // 第day天是第day-1位，redis位图的第0位是第一个字节的最高位
+            for (int day = 1; day <= month.lengthOfMonth() && (day - 1) / 8 < bitmap.length; day++) {
+                if((bitmap[(day - 1) / 8] & (0x80 >>> ((day - 1) % 8))) != 0) {
+                    signs.add(new Sign()
+                            .setUserId(userId)
+                            .setYear(month.getYear())
+                            .setMonth(month.getMonthValue())
+                            .setDate(month.atDay(day))
+                            .setIsBackup(false));
+                }
+            }
+        }
+        transactionTemplate.executeWithoutResult(status -> {
+            users.forEach((month, userIds) -> remove(new QueryWrapper<Sign>()
+                    .eq("year", month.getYear())
+                    .eq("month", month.getMonthValue())
+                    .in("user_id", userIds)));
+            saveBatch(signs, compactBatchSize);
+        });
+        // 写入数据库后再删除位图，删除失败下次会重新压缩
+        stringRedisTemplate.delete(keys);
+        return keys.size();
+    }
+}
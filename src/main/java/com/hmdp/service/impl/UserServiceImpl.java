@@ -1,7 +1,6 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
-import cn.hutool.core.bean.copier.CopyOptions;
 import cn.hutool.core.util.RandomUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.LoginFormDTO;
@@ -10,18 +9,31 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.LoginSessionCache;
 import com.hmdp.utils.RegexUtils;
+import com.hmdp.utils.SignedTokenManager;
+import com.hmdp.utils.SlidingWindowRateLimiter;
+import com.hmdp.utils.UserDTOCodec;
+import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.BitFieldSubCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
 
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 import static com.hmdp.utils.SystemConstants.USER_NICK_NAME_PREFIX;
@@ -38,9 +50,24 @@ import static com.hmdp.utils.SystemConstants.USER_NICK_NAME_PREFIX;
 @Service
 public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IUserService {
 
+    // 签到key中的月份 sign:{userId}:yyyyMM
+    private static final DateTimeFormatter SIGN_MONTH_FORMATTER = DateTimeFormatter.ofPattern(":yyyyMM");
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private LoginSessionCache loginSessionCache;
+
+    @Resource
+    private SignedTokenManager signedTokenManager;
+
+    @Resource
+    private SlidingWindowRateLimiter slidingWindowRateLimiter;
+
     @Override
     public Result sendCode(String phone, HttpSession session) {
         // 检验手机号
@@ -48,6 +75,10 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
             // 不符合，返回错误信息
             return Result.fail("手机号格式有误");
         }
+        // 同一个手机号发送验证码太频繁
+        if(slidingWindowRateLimiter.acquireByPhone("/user/code", phone) > 0) {
+            return Result.fail("发送验证码太频繁，请稍后再试");
+        }
         // 手机号格式正确，生成验证码
         String code = RandomUtil.randomNumbers(6);
         // session保存验证码到redis
@@ -69,6 +100,10 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
             // 不符合，返回错误信息
             return Result.fail("手机号格式有误");
         }
+        // 同一个手机号登录太频繁，防止暴力猜测验证码
+        if(slidingWindowRateLimiter.acquireByPhone("/user/login", phone) > 0) {
+            return Result.fail("登录太频繁，请稍后再试");
+        }
         // 校验 验证码
         // 获取 session中的验证码
 //        Object sessionCode = session.getAttribute("code");
@@ -101,22 +136,78 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         // 保存用户信息到Redis
         // 去除敏感用户信息，存到userDTO
         UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
-        // 这里将UserDTO中的属性转为string类型的
-        // setFieldValueEditor 将属性值转换为String类型
-        Map<String, Object> userMap = BeanUtil.beanToMap(userDTO, new HashMap<>(),
-                CopyOptions.create().setIgnoreNullValue(true)
-                        .setFieldValueEditor((filedName, fieldValue)->fieldValue.toString())
-        );
+        if(signedTokenManager.isEnabled()) {
+            // 签名token，用户信息保存在token中，不写redis
+            return Result.ok(signedTokenManager.issue(userDTO));
+        }
+        // 不用反射，直接把UserDTO的字段转为hash的字节
+        Map<byte[], byte[]> userMap = UserDTOCodec.encode(userDTO);
         // 生成随机token
         String token = UUID.randomUUID().toString();
-        // 将用户信息放到redis中
-        stringRedisTemplate.opsForHash().putAll(LOGIN_USER_KEY+token, userMap);
-        //设置有效期
-        stringRedisTemplate.expire(LOGIN_USER_KEY+token, LOGIN_USER_TTL, TimeUnit.MINUTES);
+        byte[] key = (LOGIN_USER_KEY + token).getBytes(StandardCharsets.UTF_8);
+        // 将用户信息放到redis中并设置有效期，一个pipeline完成
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.hMSet(key, userMap);
+            connection.expire(key, TimeUnit.MINUTES.toSeconds(LOGIN_USER_TTL));
+            return null;
+        });
         // 返回token
         return Result.ok(token);
     }
 
+    @Override
+    public Result logout(String token) {
+        // redis模式下没有签名密钥，回滚到redis模式后客户端手里的签名token按普通token删除
+        if(signedTokenManager.isEnabled() && signedTokenManager.isSignedToken(token)) {
+            signedTokenManager.revoke(token);
+            return Result.ok();
+        }
+        loginSessionCache.revoke(token);
+        return Result.ok();
+    }
+
+    @Override
+    public Map<Long, UserDTO> queryUserDTOByIds(Collection<Long> ids) {
+        // 一次MGET查询缓存，未命中的一次查询数据库 select * from tb_user where id in (...)
+        return cacheClient.queryBatchWithPassThrough(CACHE_USER_KEY, ids, UserDTO.class,
+                missIds -> listByIds(missIds).stream()
+                        .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class))),
+                CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public Result sign() {
+        // 获取当前登录用户
+        Long userId = UserHolder.getUser().getId();
+        // 拼接key sign:{userId}:yyyyMM
+        LocalDate now = LocalDate.now();
+        String key = USER_SIGN_KEY + userId + now.format(SIGN_MONTH_FORMATTER);
+        // 今天是本月第几天，写入第dayOfMonth-1位 SETBIT key offset 1
+        stringRedisTemplate.opsForValue().setBit(key, now.getDayOfMonth() - 1, true);
+        return Result.ok();
+    }
+
+    @Override
+    public Result signCount() {
+        Long userId = UserHolder.getUser().getId();
+        LocalDate now = LocalDate.now();
+        String key = USER_SIGN_KEY + userId + now.format(SIGN_MONTH_FORMATTER);
+        int dayOfMonth = now.getDayOfMonth();
+        // 一次读出本月截至今天的签到记录 BITFIELD key GET u{dayOfMonth} 0，最低位是今天
+        List<Long> result = stringRedisTemplate.opsForValue().bitField(key,
+                BitFieldSubCommands.create().get(BitFieldSubCommands.BitFieldType.unsigned(dayOfMonth)).valueAt(0));
+        if(result == null || result.isEmpty() || result.get(0) == null) {
+            return Result.ok(0);
+        }
+        long num = result.get(0);
+        // 今天还没签到时从昨天开始算，连续签到还没有中断
+        if((num & 1) == 0) {
+            num >>>= 1;
+        }
+        // 末尾连续的1的个数，就是连续签到的天数
+        return Result.ok(Long.numberOfTrailingZeros(~num));
+    }
+
     private User createUserWithPhone(String phone) {
         // 创建用户
         User user = new User();
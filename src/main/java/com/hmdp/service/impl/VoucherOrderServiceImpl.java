@@ -1,5 +1,8 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.core.net.NetUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
@@ -7,20 +10,49 @@ import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillKeyRouter;
+import com.hmdp.utils.SeckillStockLease;
 import com.hmdp.utils.UserHolder;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
 import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_DEAD_LETTER_SUFFIX;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.RedisConstants.SECKILL_RESTOCK_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
 
 /**
  * <p>
@@ -38,120 +70,589 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private RedisIdWorker redisIdWorker;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
-
     @Resource
-    private RedissonClient redissonClient;
+    private SeckillKeyRouter seckillKeyRouter;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private SeckillStockLease seckillStockLease;
 
     // 读取脚本
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<Long> SECKILL_SHARD_SCRIPT;
+    private static final DefaultRedisScript<Long> SECKILL_CLAIM_SCRIPT;
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
         SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_SHARD_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SHARD_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        SECKILL_SHARD_SCRIPT.setResultType(Long.class);
+        SECKILL_CLAIM_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_CLAIM_SCRIPT.setLocation(new ClassPathResource("seckill_claim.lua"));
+        SECKILL_CLAIM_SCRIPT.setResultType(Long.class);
     }
 
-    // 阻塞队列
-    private BlockingQueue<VoucherOrder> orderTask = new ArrayBlockingQueue<>(1024*1024);
-    // 线程池
-    public static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
-    // 代理对象
+    // lua脚本返回结果对应的提示信息
+    private static final String[] SECKILL_FAIL_MESSAGES = {null, "库存不足", "不可重复下单", null, "活动还未开始", "活动已经结束", "活动准备中，请稍后再试"};
+
+    // 每批最多写入的订单数
+    @Value("${hmdp.seckill.order-batch-size:100}")
+    private int orderBatchSize;
+    // 凑批的最长等待时间（毫秒），到时间即使不满一批也写库
+    @Value("${hmdp.seckill.order-batch-window:200}")
+    private long orderBatchWindow;
+    // 消费者名称，同一个节点重启后沿用同一个名称，才能接着处理自己的pending-list
+    @Value("${hmdp.seckill.consumer-name:}")
+    private String consumerName;
+    @Value("${server.port:8081}")
+    private int serverPort;
+    // 其他消费者的消息超过这个时间（毫秒）未确认，认为该消费者已宕机，转给自己处理
+    @Value("${hmdp.seckill.claim-idle-time:60000}")
+    private long claimIdleTime;
+    // 自己处理失败的消息超过这个时间（毫秒）未确认，重新处理
+    @Value("${hmdp.seckill.retry-idle-time:10000}")
+    private long retryIdleTime;
+    // 消息最多投递几次，仍未处理成功的转入死信队列
+    @Value("${hmdp.seckill.max-deliveries:5}")
+    private long maxDeliveries;
+
+    // 下单通道数，同一个用户的订单总是路由到同一个通道，保证单个用户的订单按顺序处理
+    @Value("${hmdp.seckill.order-lanes:4}")
+    private int orderLanes;
+    // 每个通道中等待写库的订单数上限，写满后阻塞读取消息队列
+    @Value("${hmdp.seckill.order-lane-capacity:10000}")
+    private int orderLaneCapacity;
+
+    // 线程池，一个线程读取消息队列，其余线程各自处理一个下单通道
+    private ExecutorService orderExecutor;
+    // 下单通道
+    private List<BlockingQueue<MapRecord<String, Object, Object>>> lanes;
+    // 已经分发到下单通道、还没有处理完的消息，重新处理自己的未确认消息时跳过
+    private final Set<String> inFlightMessages = ConcurrentHashMap.newKeySet();
+    // 已经售罄的优惠券和标记的过期时间，售罄后直接在本地拒绝，不再执行lua脚本；
+    // 标记会过期，过期后重新到redis判断，防止错误的售罄标记一直拒绝请求
+    private final Map<Long, Long> soldOutVouchers = new ConcurrentHashMap<>();
+    // 售罄标记的有效期，单位毫秒
+    @Value("${hmdp.seckill.sold-out-ttl:5000}")
+    private long soldOutTtl;
+    // 代理对象，异步线程中通过代理调用，防止spring事务失效
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
 
-    // 线程任务
-    private class VoucherOrderHandler implements Runnable {
+    // 批量写库的统计信息：批次数、订单数、写库总耗时、最大耗时、最近一批的大小
+    private final LongAdder flushCount = new LongAdder();
+    private final LongAdder flushedOrders = new LongAdder();
+    private final LongAdder flushNanos = new LongAdder();
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+    private volatile int lastBatchSize;
+
+    @PostConstruct
+    private void init() {
+        if(StrUtil.isBlank(consumerName)) {
+            consumerName = NetUtil.getLocalHostName() + ":" + serverPort;
+        }
+        // 其他节点发现优惠券售罄时，同步标记到本地
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> markSoldOut(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8))),
+                new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        // 有节点归还了租借的库存，取消售罄标记
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> soldOutVouchers.remove(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8))),
+                new ChannelTopic(SECKILL_RESTOCK_CHANNEL));
+        lanes = new ArrayList<>(orderLanes);
+        orderExecutor = Executors.newFixedThreadPool(orderLanes + seckillKeyRouter.getSlots());
+        for (int i = 0; i < orderLanes; i++) {
+            BlockingQueue<MapRecord<String, Object, Object>> lane = new ArrayBlockingQueue<>(orderLaneCapacity);
+            lanes.add(lane);
+            orderExecutor.submit(new VoucherOrderHandler(lane));
+        }
+        // 每个库存槽位有一个订单消息队列，各用一个线程读取
+        for (int slot = 0; slot < seckillKeyRouter.getSlots(); slot++) {
+            String streamKey = seckillKeyRouter.streamKey(slot);
+            // 创建消费者组，stream不存在时一并创建
+            try {
+                stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                        streamKey.getBytes(StandardCharsets.UTF_8), SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+            } catch (Exception e) {
+                // 消费者组已经存在
+                log.debug("消费者组已存在：" + e.getMessage());
+            }
+            orderExecutor.submit(new VoucherOrderReader(streamKey));
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        orderExecutor.shutdownNow();
+    }
+
+    // 读取消息队列，按用户id分发到下单通道
+    private class VoucherOrderReader implements Runnable {
+        private final Consumer consumer = Consumer.from(SECKILL_ORDER_GROUP, consumerName);
+        // 读取的消息队列
+        private final String streamKey;
+        // 上一次检查pending-list的时间
+        private long lastClaimTime;
+
+        private VoucherOrderReader(String streamKey) {
+            this.streamKey = streamKey;
+        }
+
         @Override
         public void run() {
-            while(true) {
+            try {
+                // 先处理自己在上次运行时未确认的消息
+                dispatchPendingList();
+                while(!Thread.currentThread().isInterrupted()) {
+                    try {
+                        // 接管宕机消费者的消息
+                        claimIdleMessages();
+                        // 获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 100 BLOCK 2000 STREAMS stream.orders >
+                        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                                consumer,
+                                StreamReadOptions.empty().count(orderBatchSize).block(Duration.ofSeconds(2)),
+                                StreamOffset.create(streamKey, ReadOffset.lastConsumed())
+                        );
+                        dispatch(records);
+                    } catch (InterruptedException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        log.error("读取订单消息异常", e);
+                        Thread.sleep(20);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // 启动时处理自己上次运行时未确认的消息
+        private void dispatchPendingList() throws InterruptedException {
+            while(!Thread.currentThread().isInterrupted()) {
                 try {
-                    // 从阻塞队列中取出任务
-                    VoucherOrder voucherOrder = orderTask.take();
-                    // 创建订单
-                    handlerVoucherOrder(voucherOrder);
+                    recoverPendingMessages(true);
+                    return;
                 } catch (InterruptedException e) {
-                    log.error("线程执行出错"+e);
+                    throw e;
+                } catch (Exception e) {
+                    log.error("读取pending-list订单异常", e);
+                    Thread.sleep(20);
                 }
             }
         }
 
-        @PostConstruct
-        private void init() {
-            SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        private void claimIdleMessages() throws InterruptedException {
+            long now = System.currentTimeMillis();
+            if(now - lastClaimTime < Math.min(claimIdleTime, retryIdleTime)) {
+                return;
+            }
+            lastClaimTime = now;
+            recoverPendingMessages(false);
         }
 
-        private void handlerVoucherOrder(VoucherOrder voucherOrder) {
-            // 获取用户id
-            long userId = voucherOrder.getUserId();
-            // 获取锁（可重入），自定义锁的名称
-            RLock lock = redissonClient.getLock("lock:order:" + userId);
-            // 尝试获取锁，设置1s内反复尝试，ttl设置为10秒
-//        boolean success = lock.tryLock(1, 10, TimeUnit.SECONDS);
-            // 获取锁
-            boolean success = lock.tryLock();
-            if(!success) {
-                log.error("不允许重复下单");
+        /**
+         * 重新投递消费者组中未确认的消息，投递次数达到上限的消息转入死信队列
+         * @param startup 是否刚启动，启动时处理自己的所有消息，运行中处理自己处理失败的消息和空闲时间过长的其他消费者的消息
+         */
+        private void recoverPendingMessages(boolean startup) throws InterruptedException {
+            String lastId = null;
+            while(true) {
+                // 按id分页查询未确认的消息 XPENDING stream.orders g1 - + 100
+                Range<?> range = lastId == null ? Range.unbounded() : Range.rightUnbounded(Range.Bound.inclusive(lastId));
+                PendingMessages page = stringRedisTemplate.opsForStream().pending(
+                        streamKey, SECKILL_ORDER_GROUP, range, orderBatchSize);
+                String from = lastId;
+                List<PendingMessage> messages = page.stream()
+                        .filter(message -> !message.getIdAsString().equals(from))
+                        .collect(Collectors.toList());
+                if(messages.isEmpty()) {
+                    return;
+                }
+                List<PendingMessage> own = new ArrayList<>();
+                List<PendingMessage> idle = new ArrayList<>();
+                for (PendingMessage message : messages) {
+                    if(consumerName.equals(message.getConsumerName())) {
+                        // 还在下单通道中的消息不是处理失败，只是还没轮到
+                        if(startup || message.getElapsedTimeSinceLastDelivery().toMillis() >= retryIdleTime
+                                && !inFlightMessages.contains(inFlightKey(streamKey, message.getIdAsString()))) {
+                            own.add(message);
+                        }
+                    } else if(message.getElapsedTimeSinceLastDelivery().toMillis() >= claimIdleTime) {
+                        idle.add(message);
+                    }
+                }
+                claimAndDispatch(own, startup ? 0 : retryIdleTime);
+                claimAndDispatch(idle, claimIdleTime);
+                lastId = messages.get(messages.size() - 1).getIdAsString();
+                if(page.size() < orderBatchSize) {
+                    return;
+                }
+            }
+        }
+
+        // 把消息转给自己 XCLAIM stream.orders g1 c1 60000 id...，投递次数达到上限的转入死信队列，其余重新处理
+        private void claimAndDispatch(List<PendingMessage> messages, long minIdle) throws InterruptedException {
+            if(messages.isEmpty()) {
                 return;
             }
-            try {
-                // 使用事务的代理对象防止spring事务失效
-                proxy.createVoucherOrder(voucherOrder);
-            } finally {
-                lock.unlock();
+            Map<String, Long> deliveries = messages.stream()
+                    .collect(Collectors.toMap(PendingMessage::getIdAsString, PendingMessage::getTotalDeliveryCount));
+            RecordId[] ids = messages.stream().map(PendingMessage::getId).toArray(RecordId[]::new);
+            List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                    connection.streamCommands().xClaim(
+                            streamKey.getBytes(StandardCharsets.UTF_8), SECKILL_ORDER_GROUP, consumerName,
+                            RedisStreamCommands.XClaimOptions.minIdle(Duration.ofMillis(minIdle)).ids(ids)));
+            if(claimed == null || claimed.isEmpty()) {
+                return;
             }
+            log.debug("重新处理未确认的订单消息" + claimed.size() + "条");
+            List<MapRecord<String, Object, Object>> retries = new ArrayList<>(claimed.size());
+            for (ByteRecord byteRecord : claimed) {
+                MapRecord<String, Object, Object> record = byteRecord.deserialize(
+                        RedisSerializer.string(), RedisSerializer.string(), RedisSerializer.string());
+                if(deliveries.getOrDefault(record.getId().getValue(), 0L) >= maxDeliveries) {
+                    deadLetter(record);
+                } else {
+                    retries.add(record);
+                }
+            }
+            dispatch(retries);
+        }
+
+        // 写入死信队列后确认原消息，死信队列和订单消息队列使用同一个hash tag
+        private void deadLetter(MapRecord<String, Object, Object> record) {
+            Map<String, String> values = new HashMap<>();
+            record.getValue().forEach((field, value) -> values.put(field.toString(), value.toString()));
+            values.put("sourceId", record.getId().getValue());
+            stringRedisTemplate.opsForStream().add(streamKey + SECKILL_DEAD_LETTER_SUFFIX, values);
+            stringRedisTemplate.opsForStream().acknowledge(streamKey, SECKILL_ORDER_GROUP, record.getId());
+            log.error("订单消息" + record.getId() + "投递" + maxDeliveries + "次仍未处理成功，转入死信队列：" + values);
+        }
 
+        private void dispatch(List<MapRecord<String, Object, Object>> records) throws InterruptedException {
+            if(records == null) {
+                return;
+            }
+            for (MapRecord<String, Object, Object> record : records) {
+                // 同一个用户的订单进入同一个通道，通道满了就阻塞，不再继续读取消息
+                inFlightMessages.add(inFlightKey(record.getStream(), record.getId().getValue()));
+                long userId = Long.parseLong(record.getValue().get("userId").toString());
+                lanes.get(Math.floorMod(Long.hashCode(userId), orderLanes)).put(record);
+            }
+        }
+    }
+
+    private static String inFlightKey(String streamKey, String id) {
+        return streamKey + "/" + id;
+    }
+
+    // 下单通道任务，每个通道一个线程，批量写库
+    private class VoucherOrderHandler implements Runnable {
+        private final BlockingQueue<MapRecord<String, Object, Object>> lane;
+
+        private VoucherOrderHandler(BlockingQueue<MapRecord<String, Object, Object>> lane) {
+            this.lane = lane;
+        }
+
+        @Override
+        public void run() {
+            List<MapRecord<String, Object, Object>> batch = new ArrayList<>(orderBatchSize);
+            while(!Thread.currentThread().isInterrupted()) {
+                try {
+                    // 阻塞等待第一个订单
+                    batch.add(lane.take());
+                    // 在时间窗口内凑满一批
+                    fillBatch(batch);
+                    // 批量创建订单并确认消息
+                    handlerVoucherOrders(batch);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    log.error("处理订单异常", e);
+                    // 整批失败时逐条重试，成功的订单确认消息，失败的留在pending-list中，空闲retry-idle-time后重新处理
+                    handlerOneByOne(batch);
+                } finally {
+                    batch.forEach(record -> inFlightMessages.remove(inFlightKey(record.getStream(), record.getId().getValue())));
+                    batch.clear();
+                }
+            }
+        }
+
+        private void fillBatch(List<MapRecord<String, Object, Object>> batch) throws InterruptedException {
+            // 先把通道里已有的订单一次取出
+            lane.drainTo(batch, orderBatchSize - batch.size());
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(orderBatchWindow);
+            while(batch.size() < orderBatchSize) {
+                long remaining = deadline - System.nanoTime();
+                if(remaining <= 0) {
+                    return;
+                }
+                MapRecord<String, Object, Object> record = lane.poll(remaining, TimeUnit.NANOSECONDS);
+                if(record == null) {
+                    return;
+                }
+                batch.add(record);
+                lane.drainTo(batch, orderBatchSize - batch.size());
+            }
+        }
+
+        private void handlerVoucherOrders(List<MapRecord<String, Object, Object>> records) {
+            List<VoucherOrder> batch = records.stream()
+                    .map(record -> BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true))
+                    .collect(Collectors.toList());
+            long begin = System.nanoTime();
+            // 使用事务的代理对象防止spring事务失效
+            proxy.createVoucherOrders(batch);
+            long cost = System.nanoTime() - begin;
+            // 写库成功后确认消息 XACK stream.orders g1 id...
+            acknowledge(records);
+            // 记录统计信息
+            flushCount.increment();
+            flushedOrders.add(batch.size());
+            flushNanos.add(cost);
+            maxFlushNanos.accumulateAndGet(cost, Math::max);
+            lastBatchSize = batch.size();
+            log.debug("批量写入订单" + batch.size() + "条，耗时" + TimeUnit.NANOSECONDS.toMillis(cost) + "ms");
+        }
+
+        private void handlerOneByOne(List<MapRecord<String, Object, Object>> records) {
+            for (MapRecord<String, Object, Object> record : records) {
+                try {
+                    proxy.createVoucherOrder(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+                    acknowledge(Collections.singletonList(record));
+                } catch (Exception e) {
+                    log.error("订单" + record.getId() + "写入失败", e);
+                }
+            }
+        }
+
+        private void acknowledge(List<MapRecord<String, Object, Object>> records) {
+            // 一批订单可能来自不同槽位的消息队列，按队列分别确认
+            records.stream().collect(Collectors.groupingBy(MapRecord::getStream)).forEach((streamKey, streamRecords) ->
+                    stringRedisTemplate.opsForStream().acknowledge(streamKey, SECKILL_ORDER_GROUP,
+                            streamRecords.stream().map(MapRecord::getId).toArray(RecordId[]::new)));
         }
     }
 
     @Override
     public Result seckillVoucher(Long voucherId) {
+        // 本地已经标记售罄，不用访问redis；本节点还有租借的库存时继续卖
+        if(isSoldOut(voucherId) && !seckillStockLease.hasLease(voucherId)) {
+            return Result.fail("库存不足");
+        }
         // 获取用户id
         Long userId = UserHolder.getUser().getId();
-        // 执行lua脚本，解决超卖和一人一单的问题
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString()
-        );
-        int res = result.intValue();
+        // 获取订单id
+        long orderId = redisIdWorker.nextId("order");
+        // 执行lua脚本，解决超卖和一人一单的问题，有资格的订单在脚本中直接写入消息队列
+        int res = seckillStockLease.isEnabled()
+                ? seckillWithLease(voucherId, userId, orderId)
+                : seckill(voucherId, userId, orderId);
+        // 第一次发现库存不足时标记售罄，并通知其他节点；库存key不存在（6）不是售罄，不做标记
+        if(res == 1 && markSoldOut(voucherId)) {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+        }
         // lua返回结果不为0.没有资格
         if(res != 0) {
-            return Result.fail(res == 1 ? "库存不足" : "不可重复下单" );
+            return Result.fail(SECKILL_FAIL_MESSAGES[res]);
         }
-        // 有资格，将优惠券id，用户id，订单id等信息存到阻塞队列中
-        // 新增订单
-        VoucherOrder voucherOrder = new VoucherOrder();
-        long orderId = redisIdWorker.nextId("order");
-        voucherOrder.setId(orderId);
-        voucherOrder.setUserId(userId);
-        voucherOrder.setVoucherId(voucherId);
-        // 把订单放到阻塞队列中
-        orderTask.add(voucherOrder);
-        // 获取代理对象，让异步操作使用
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
         return Result.ok(orderId);
     }
 
+    private boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOutVouchers.get(voucherId);
+        if(expireAt == null) {
+            return false;
+        }
+        if(expireAt < System.currentTimeMillis()) {
+            soldOutVouchers.remove(voucherId, expireAt);
+            return false;
+        }
+        return true;
+    }
+
+    // 标记售罄，之前没有标记或者标记已经过期时返回true
+    private boolean markSoldOut(Long voucherId) {
+        long now = System.currentTimeMillis();
+        Long previous = soldOutVouchers.put(voucherId, now + soldOutTtl);
+        return previous == null || previous < now;
+    }
+
+    // 在用户所属的分片上抢购，所属分片没有库存时依次到其他分片扣库存
+    private int seckill(Long voucherId, Long userId, long orderId) {
+        int shards = seckillKeyRouter.shardsOf(voucherId);
+        int home = seckillKeyRouter.homeShard(voucherId, userId);
+        String[] args = {voucherId.toString(), userId.toString(), String.valueOf(orderId)};
+        Long result = stringRedisTemplate.execute(
+                SECKILL_SCRIPT,
+                Arrays.asList(seckillKeyRouter.stockKey(voucherId, home), seckillKeyRouter.orderKey(voucherId, home, userId),
+                        seckillKeyRouter.streamKey(voucherId, home), seckillKeyRouter.windowKey(voucherId, home)),
+                args[0], args[1], args[2], shards > 1 ? "1" : "0",
+                seckillKeyRouter.isBuyerBitmap() ? "bitmap" : "set", seckillKeyRouter.buyerMember(userId),
+                String.valueOf(System.currentTimeMillis())
+        );
+        // 0：抢购成功，1：库存不足，2：重复下单，3：已占住一人一单的资格，但所属分片没有库存，4：活动未开始，5：活动已结束，6：库存还没有写入redis
+        if(result.intValue() != 3) {
+            return result.intValue();
+        }
+        // 所有分片都确实没有库存才算售罄，有分片的库存key不存在时返回6
+        int failure = 1;
+        for (int i = 1; i < shards; i++) {
+            int shard = (home + i) % shards;
+            Long res = stringRedisTemplate.execute(
+                    SECKILL_SHARD_SCRIPT,
+                    Arrays.asList(seckillKeyRouter.stockKey(voucherId, shard), seckillKeyRouter.streamKey(voucherId, shard)),
+                    (Object[]) args
+            );
+            if(res.intValue() == 0) {
+                return 0;
+            }
+            if(res.intValue() == 6) {
+                failure = 6;
+            }
+        }
+        // 所有分片都没有库存，释放一人一单的资格
+        String orderKey = seckillKeyRouter.orderKey(voucherId, home, userId);
+        if(seckillKeyRouter.isBuyerBitmap()) {
+            stringRedisTemplate.opsForValue().setBit(orderKey, Long.parseLong(seckillKeyRouter.buyerMember(userId)), false);
+        } else {
+            stringRedisTemplate.opsForSet().remove(orderKey, userId.toString());
+        }
+        return failure;
+    }
+
+    // 从节点本地租借的库存中扣减，redis中只判断一人一单并写入订单消息队列
+    private int seckillWithLease(Long voucherId, Long userId, long orderId) {
+        // 判断活动是否在进行中
+        int window = seckillStockLease.checkWindow(voucherId, System.currentTimeMillis());
+        if(window != 0) {
+            return window;
+        }
+        // 本地判断一人一单，在本节点购买过的用户不用再访问redis
+        if(!seckillStockLease.markBuyer(voucherId, userId)) {
+            return 2;
+        }
+        int shard = seckillStockLease.acquire(voucherId);
+        if(shard < 0) {
+            seckillStockLease.unmarkBuyer(voucherId, userId);
+            // -2：库存还没有写入redis，不是售罄
+            return shard == -2 ? 6 : 1;
+        }
+        int home = seckillKeyRouter.homeShard(voucherId, userId);
+        Long result;
+        try {
+            result = stringRedisTemplate.execute(
+                    SECKILL_CLAIM_SCRIPT,
+                    Arrays.asList(seckillKeyRouter.orderKey(voucherId, home, userId), seckillKeyRouter.streamKey(voucherId, home)),
+                    voucherId.toString(), userId.toString(), String.valueOf(orderId),
+                    seckillKeyRouter.isBuyerBitmap() ? "bitmap" : "set", seckillKeyRouter.buyerMember(userId)
+            );
+        } catch (RuntimeException e) {
+            seckillStockLease.release(voucherId, shard);
+            seckillStockLease.unmarkBuyer(voucherId, userId);
+            throw e;
+        }
+        // 在其他节点购买过，归还库存
+        if(result.intValue() != 0) {
+            seckillStockLease.release(voucherId, shard);
+        }
+        return result.intValue();
+    }
+
     @Transactional
     public void createVoucherOrder(VoucherOrder voucherOrder) {
-        // 获取当前登录用户id
-        Long userId = UserHolder.getUser().getId();
-        // 一人一单
-        // 根据用户id查询数据库判断是否已经下过单
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
-        // 已经下过单
-        if(count > 0) {
+        // 一人一单，由唯一索引判断，写入行数为0说明已经下过单
+        if(baseMapper.insertIgnore(voucherOrder) == 0) {
             log.error("一人只能买一张");
             return;
         }
-        // 下订单
+        // 扣减库存，库存不足时抛出异常回滚已经写入的订单
         boolean success = seckillVoucherService.update().setSql("stock = stock - 1")
                 .eq("voucher_id", voucherOrder.getVoucherId())
                 .gt("stock", 0)
                 .update();
         if(!success) {
-            log.error("库存不足");
+            throw new IllegalStateException("库存不足，订单" + voucherOrder.getId() + "未写入");
+        }
+    }
+
+    @Override
+    @Transactional
+    public void createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        TransactionStatus status = TransactionAspectSupport.currentTransactionStatus();
+        // 按优惠券分组，每张优惠券一批只扣一次库存
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+        ordersOfVoucher.forEach((voucherId, orders) -> {
+            // 整批扣减失败时回滚到这里，不影响其他优惠券的订单
+            Object savepoint = status.createSavepoint();
+            // 多行insert批量写入订单，重复的订单由唯一索引过滤，写入行数就是有效订单数
+            int count = baseMapper.insertIgnoreBatch(orders);
+            if(count == 0) {
+                log.error("一人只能买一张");
+                status.releaseSavepoint(savepoint);
+                return;
+            }
+            // 扣减库存，一批订单只执行一次update
+            boolean success = seckillVoucherService.update().setSql("stock = stock - " + count)
+                    .eq("voucher_id", voucherId)
+                    .ge("stock", count)
+                    .update();
+            if(success) {
+                status.releaseSavepoint(savepoint);
+                return;
+            }
+            // 库存不够整批扣减，撤销这一批，逐条写入，库存扣完之前的订单仍然有效
+            status.rollbackToSavepoint(savepoint);
+            status.releaseSavepoint(savepoint);
+            log.error("优惠券" + voucherId + "的库存不够扣减" + count + "个订单，逐条写入");
+            for (VoucherOrder order : orders) {
+                createVoucherOrderInSavepoint(status, order);
+            }
+        });
+    }
+
+    // 在保存点中写入一个订单，库存不足时只撤销这一个订单
+    private void createVoucherOrderInSavepoint(TransactionStatus status, VoucherOrder voucherOrder) {
+        Object savepoint = status.createSavepoint();
+        if(baseMapper.insertIgnore(voucherOrder) == 0) {
+            log.error("一人只能买一张");
+            status.releaseSavepoint(savepoint);
             return;
         }
-        save(voucherOrder);
+        boolean success = seckillVoucherService.update().setSql("stock = stock - 1")
+                .eq("voucher_id", voucherOrder.getVoucherId())
+                .gt("stock", 0)
+                .update();
+        if(!success) {
+            status.rollbackToSavepoint(savepoint);
+            log.error("库存不足，订单" + voucherOrder.getId() + "未写入");
+        }
+        status.releaseSavepoint(savepoint);
+    }
+
+    @Override
+    public Result queryOrderStats() {
+        long times = flushCount.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        // 消息队列中已投递但还未确认的订单数
+        long pendingSize = 0;
+        for (int slot = 0; slot < seckillKeyRouter.getSlots(); slot++) {
+            pendingSize += stringRedisTemplate.opsForStream()
+                    .pending(seckillKeyRouter.streamKey(slot), SECKILL_ORDER_GROUP).getTotalPendingMessages();
+        }
+        stats.put("pendingSize", pendingSize);
+        // 每个下单通道中等待写库的订单数
+        stats.put("laneSizes", lanes.stream().map(BlockingQueue::size).collect(Collectors.toList()));
+        stats.put("flushCount", times);
+        stats.put("flushedOrders", flushedOrders.sum());
+        stats.put("lastBatchSize", lastBatchSize);
+        stats.put("avgBatchSize", times == 0 ? 0 : flushedOrders.sum() / times);
+        stats.put("avgFlushMillis", times == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(flushNanos.sum() / times));
+        stats.put("maxFlushMillis", TimeUnit.NANOSECONDS.toMillis(maxFlushNanos.get()));
+        return Result.ok(stats);
     }
 
     /*
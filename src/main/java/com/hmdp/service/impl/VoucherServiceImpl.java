@@ -7,14 +7,19 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillKeyRouter;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
 import java.util.List;
-
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import java.util.Map;
 
 /**
  * <p>
@@ -33,6 +38,13 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillKeyRouter seckillKeyRouter;
+
+    // 提前多少分钟预热秒杀活动
+    @Value("${hmdp.seckill.preheat-ahead:10}")
+    private long preheatAhead;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -53,7 +65,45 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        // 把优惠券库存放到redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        // 把优惠券库存和活动时间放到redis中
+        int shards = seckillKeyRouter.saveShards(voucher.getId(), voucher.getStockShards());
+        cacheSeckillVoucher(seckillVoucher, shards, false);
+    }
+
+    // 预热即将开始的秒杀活动，活动开始时库存和活动时间都已经在redis中，不用再访问数据库
+    @Scheduled(fixedDelayString = "${hmdp.seckill.preheat-interval:60000}")
+    public void preheatSeckillVouchers() {
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> seckillVouchers = seckillVoucherService.query()
+                .gt("begin_time", now)
+                .le("begin_time", now.plusMinutes(preheatAhead))
+                .list();
+        for (SeckillVoucher seckillVoucher : seckillVouchers) {
+            // 已经在redis中的库存不能覆盖，只补充缺失的key
+            cacheSeckillVoucher(seckillVoucher, seckillKeyRouter.shardsOf(seckillVoucher.getVoucherId()), true);
+        }
+    }
+
+    private void cacheSeckillVoucher(SeckillVoucher seckillVoucher, int shards, boolean onlyAbsent) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        int stock = seckillVoucher.getStock();
+        Map<String, String> window = new HashMap<>();
+        window.put("begin", String.valueOf(toEpochMilli(seckillVoucher.getBeginTime())));
+        window.put("end", String.valueOf(toEpochMilli(seckillVoucher.getEndTime())));
+        // 库存按分片平均拆分，余数分给前几个分片，每个分片都保存一份活动时间
+        for (int i = 0; i < shards; i++) {
+            String shardStock = String.valueOf(stock / shards + (i < stock % shards ? 1 : 0));
+            String stockKey = seckillKeyRouter.stockKey(voucherId, i);
+            if(onlyAbsent) {
+                stringRedisTemplate.opsForValue().setIfAbsent(stockKey, shardStock);
+            } else {
+                stringRedisTemplate.opsForValue().set(stockKey, shardStock);
+            }
+            stringRedisTemplate.opsForHash().putAll(seckillKeyRouter.windowKey(voucherId, i), window);
+        }
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
 }
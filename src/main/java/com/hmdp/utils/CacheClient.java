@@ -1,19 +1,50 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.GenericToStringSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -21,109 +52,754 @@ import static com.hmdp.utils.RedisConstants.*;
 @Component
 public class CacheClient {
     private StringRedisTemplate stringRedisTemplate;
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    // 缓存值的编解码
+    private CacheCodec cacheCodec;
+
+    // redis中的空值，表示数据库中不存在
+    private static final byte[] NULL_VALUE = new byte[0];
+    // 带版本号的缓存值的第一个字节，后面8个字节是版本号，没有这个标记的是旧格式，写入时直接覆盖
+    private static final byte VERSION_MARKER = 'V';
+    private static final int VERSION_HEADER = 9;
+
+    // 缓存重建线程数
+    @Value("${hmdp.cache.rebuild.threads:10}")
+    private int rebuildThreads;
+    // 缓存重建队列长度，队列满了丢弃重建任务，继续返回旧数据
+    @Value("${hmdp.cache.rebuild.queue-capacity:100}")
+    private int rebuildQueueCapacity;
+    // 缓存重建的超时时间，单位毫秒
+    @Value("${hmdp.cache.rebuild.timeout:10000}")
+    private long rebuildTimeout;
+    // 重建锁的有效期，单位毫秒，0表示重建超时时间再加上LOCK_LEASE_MARGIN
+    // 卡住的重建不会长时间占着锁，超时后其他节点可以重建，带版本号的缓存不会被卡住的重建写回旧数据
+    @Value("${hmdp.cache.rebuild.lock-lease:0}")
+    private long lockLease;
+    private static final long LOCK_LEASE_MARGIN = 2000;
 
     // 线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    private CacheRebuildExecutor cacheRebuildExecutor;
+
+    // 带版本号写入的脚本返回1或0
+    private static final RedisSerializer<Long> CAS_RESULT_SERIALIZER = new GenericToStringSerializer<>(Long.class);
+
+    // 释放锁的脚本，只删除自己加的锁
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    static {
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+    // 锁的持有者标识，节点前缀加上递增的序号，每次加锁都不同
+    private static final String LOCK_OWNER_PREFIX = UUID.randomUUID().toString() + "-";
+    private final AtomicLong lockSequence = new AtomicLong();
+
+    // 带版本号写入缓存的脚本，用EVALSHA执行，不用每次发送脚本内容
+    private static final DefaultRedisScript<Long> CAS_SCRIPT;
+    static {
+        CAS_SCRIPT = new DefaultRedisScript<>();
+        CAS_SCRIPT.setLocation(new ClassPathResource("cache_cas.lua"));
+        CAS_SCRIPT.setResultType(Long.class);
+    }
+
+    // 是否开启本地缓存，开启后先查本地缓存，再查redis
+    @Value("${hmdp.cache.local.enabled:false}")
+    private boolean localEnabled;
+    // 本地缓存最多保存的key数量
+    @Value("${hmdp.cache.local.maximum-size:10000}")
+    private long localMaximumSize;
+    // 本地缓存写入后的有效期，单位秒，其他节点修改数据时通过发布订阅删除，有效期兜底
+    @Value("${hmdp.cache.local.ttl:60}")
+    private long localTtl;
+
+    // 是否合并同一个key的并发缓存重建，同一个节点只有一个线程查询数据库
+    @Value("${hmdp.cache.single-flight:true}")
+    private boolean singleFlight;
+    // 是否在合并的基础上加redis锁，集群中只有一个节点查询数据库
+    @Value("${hmdp.cache.distributed-lock:false}")
+    private boolean distributedLock;
+    // 没有获取到redis锁时最多等待其他节点重建多久，单位毫秒，超时后自己查询数据库
+    @Value("${hmdp.cache.lock-wait:1000}")
+    private long lockWait;
+
+    // 过期时间的随机浮动比例，0.1表示在设置的时间上随机增加0~10%，避免同时写入的key同时过期
+    @Value("${hmdp.cache.ttl-jitter:0}")
+    private double ttlJitter;
+    // 提前刷新的系数，越大越早刷新，0表示不提前刷新
+    // 每次命中时按 -重建耗时 * beta * ln(random) >= 剩余有效期 判断是否在后台提前重建缓存
+    @Value("${hmdp.cache.early-refresh-beta:0}")
+    private double earlyRefreshBeta;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    // 是否探测热点key，热点key在本地保存一份副本
+    @Value("${hmdp.cache.hot-key.enabled:false}")
+    private boolean hotKeyEnabled;
+    // 访问的采样率，0.1表示每10次访问记录1次
+    @Value("${hmdp.cache.hot-key.sample-rate:0.1}")
+    private double hotKeySampleRate;
+    // 一个衰减周期内访问次数超过它的key是热点key
+    @Value("${hmdp.cache.hot-key.threshold:1000}")
+    private long hotKeyThreshold;
+    // count-min sketch每行的计数器个数
+    @Value("${hmdp.cache.hot-key.sketch-width:16384}")
+    private int hotKeySketchWidth;
+    // 热点key本地副本的有效期，单位秒
+    @Value("${hmdp.cache.hot-key.ttl:5}")
+    private long hotKeyTtl;
+    // 最多保存多少个热点key的本地副本
+    @Value("${hmdp.cache.hot-key.maximum-size:1000}")
+    private long hotKeyMaximumSize;
+
+    // 还没有统计到重建耗时的时候，按50ms计算
+    private static final double DEFAULT_REBUILD_COST = 50;
+
+    // 本地缓存
+    private Cache<String, Object> localCache;
+    // 热点key探测和热点key的本地副本
+    private HotKeyDetector hotKeyDetector;
+    private Cache<String, Object> hotCache;
+
+    // 带版本号的缓存前缀和取版本号的方法
+    private final Map<String, ToLongFunction<Object>> versions = new ConcurrentHashMap<>();
+
+    // 正在查询数据库的key
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    // 每种key前缀的重建耗时，单位毫秒，指数移动平均
+    private final Map<String, Double> rebuildCosts = new ConcurrentHashMap<>();
+
+    // 命中统计：查询次数、本地缓存命中次数、redis命中次数
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder localHits = new LongAdder();
+    private final LongAdder hotHits = new LongAdder();
+    private final LongAdder redisHits = new LongAdder();
+    // 查询数据库的次数、等待其他线程查询结果的次数
+    private final LongAdder dbLoads = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    // 提前刷新的次数
+    private final LongAdder earlyRefreshes = new LongAdder();
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer redisMessageListenerContainer,
+                       CacheCodec cacheCodec) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.redisMessageListenerContainer = redisMessageListenerContainer;
+        this.cacheCodec = cacheCodec;
+    }
+
+    @PostConstruct
+    private void init() {
+        cacheRebuildExecutor = new CacheRebuildExecutor(rebuildThreads, rebuildQueueCapacity, rebuildTimeout);
+        if(localEnabled) {
+            localCache = Caffeine.newBuilder()
+                    .maximumSize(localMaximumSize)
+                    .expireAfterWrite(localTtl, TimeUnit.SECONDS)
+                    .build();
+        }
+        if(hotKeyEnabled) {
+            hotKeyDetector = new HotKeyDetector(hotKeySketchWidth, hotKeySampleRate, hotKeyThreshold);
+            hotCache = Caffeine.newBuilder()
+                    .maximumSize(hotKeyMaximumSize)
+                    .expireAfterWrite(hotKeyTtl, TimeUnit.SECONDS)
+                    .build();
+        }
+        if(localCache == null && hotCache == null) {
+            return;
+        }
+        // 其他节点修改或删除缓存时，删除本地缓存
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> evictLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    @PreDestroy
+    private void destroy() {
+        cacheRebuildExecutor.shutdown();
+    }
+
+    // 热点key计数减半，冷却的key删除本地副本
+    @Scheduled(fixedDelayString = "${hmdp.cache.hot-key.decay-interval:10000}")
+    public void decayHotKeys() {
+        if(hotKeyDetector == null) {
+            return;
+        }
+        List<String> cooled = hotKeyDetector.decay();
+        hotCache.invalidateAll(cooled);
     }
 
-    //将任意对象序列化为JSON并存储到string类型的key中，并且设置TTL
+    // 访问次数最多的热点key
+    public Map<String, Long> hotKeys(int limit) {
+        return hotKeyDetector == null ? new LinkedHashMap<>() : hotKeyDetector.topK(limit);
+    }
+
+    //将任意对象序列化并存储到string类型的key中，并且设置TTL
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        writeEntry(key, value, time, unit);
+        invalidateLocal(key);
     }
-    //将任意对象序列化为JSON并存储到string类型的key中，并且设置逻辑过期时间，用于处理缓存击穿
+    //将任意对象序列化并存储到string类型的key中，并且设置逻辑过期时间，用于处理缓存击穿
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
-        // 将商户信息和逻辑过期时间封装
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        // 写到redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        // 写到redis，带版本号的缓存同样比较版本后写入
+        writeBytes(key, value, logicalExpireBytes(value, time, unit), Expiration.persistent());
+        invalidateLocal(key);
+    }
+
+    // 用pipeline一次写入一批缓存，用于预热，数据来自数据库，不通知其他节点
+    public void setAll(Map<String, ?> values, Long time, TimeUnit unit) {
+        executeWritePipeline(connection ->
+                values.forEach((key, value) -> writeEntry(connection, key, value, expiration(time, unit))));
+    }
+
+    // 用pipeline一次写入一批逻辑过期的缓存，用于预热
+    public void setAllWithLogicalExpire(Map<String, ?> values, Long time, TimeUnit unit) {
+        executeWritePipeline(connection -> values.forEach((key, value) ->
+                writeBytes(connection, key, value, logicalExpireBytes(value, time, unit), Expiration.persistent())));
+    }
+
+    // 8个字节的逻辑过期时间的毫秒值，后面是数据，读取时不用先解析一层包装对象
+    // 带版本号的缓存写入时在最前面再加上8个字节的版本号
+    private byte[] logicalExpireBytes(Object value, Long time, TimeUnit unit) {
+        byte[] data = cacheCodec.encode(value);
+        return ByteBuffer.allocate(8 + data.length)
+                .putLong(System.currentTimeMillis() + unit.toMillis(time))
+                .put(data)
+                .array();
+    }
+
+    // 删除缓存，并通知所有节点删除本地缓存
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        invalidateLocal(key);
+    }
+
+    // 各级缓存的命中率
+    public Map<String, Object> stats() {
+        long total = requests.sum();
+        long local = localHits.sum();
+        long redis = redisHits.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("requests", total);
+        stats.put("localHits", local);
+        stats.put("localHitRatio", total == 0 ? 0 : (double) local / total);
+        stats.put("hotHits", hotHits.sum());
+        stats.put("hotSize", hotCache == null ? 0 : hotCache.estimatedSize());
+        stats.put("redisHits", redis);
+        stats.put("redisHitRatio", total == local ? 0 : (double) redis / (total - local));
+        stats.put("dbLoads", dbLoads.sum());
+        stats.put("coalesced", coalesced.sum());
+        stats.put("earlyRefreshes", earlyRefreshes.sum());
+        stats.put("rebuildCosts", rebuildCosts);
+        stats.put("localSize", localCache == null ? 0 : localCache.estimatedSize());
+        stats.put("rebuild", cacheRebuildExecutor.stats());
+        return stats;
+    }
+
+    private void invalidateLocal(String key) {
+        if(localCache == null && hotCache == null) {
+            return;
+        }
+        evictLocal(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    private void evictLocal(String key) {
+        if(localCache != null) {
+            localCache.invalidate(key);
+        }
+        if(hotCache != null) {
+            hotCache.invalidate(key);
+        }
     }
 
     //根据指定的key查询缓存，并反序列化为指定类型，利用缓存空值解决缓存穿透问题
     public <R, ID> R queryWithPassThrough(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallBack, Long time, TimeUnit unit){
         String key = keyPrefix + id;
-        // 在redis中查询商户
-        String jsonObj = stringRedisTemplate.opsForValue().get(key);
-        // 存在，返回
-        if(StrUtil.isNotBlank(jsonObj)) {
-            return JSONUtil.toBean(jsonObj, type);
+        requests.increment();
+        // 先查本地缓存
+        if(localCache != null) {
+            Object local = localCache.getIfPresent(key);
+            if(local != null) {
+                localHits.increment();
+                return type.cast(local);
+            }
+        }
+        // 记录访问，热点key先查本地副本
+        if(hotKeyDetector != null && hotKeyDetector.record(key)) {
+            Object hot = hotCache.getIfPresent(key);
+            if(hot != null) {
+                hotHits.increment();
+                return type.cast(hot);
+            }
+        }
+        // 在redis中查询商户，需要提前刷新时同一个pipeline查询剩余有效期
+        byte[] bytes;
+        long pttl = -1;
+        if(earlyRefreshBeta > 0) {
+            List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                connection.get(rawKey(key));
+                connection.pTtl(rawKey(key));
+                return null;
+            }, RedisSerializer.byteArray());
+            bytes = (byte[]) results.get(0);
+            pttl = results.get(1) == null ? -1 : (Long) results.get(1);
+        } else {
+            bytes = getBytes(key);
         }
         // 如果redis中为“”空字符串，返回null
-        if(jsonObj != null) {
+        if(bytes != null && bytes.length == 0) {
+            redisHits.increment();
             return null;
         }
-        // 不存在，在mysql数据库中查询
-        R r = dbFallBack.apply(id);
-        // 不存在，返回错误信息
-        if(r == null) {
-            // 把空值写道redis，防止缓存穿透
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-            return null;
+        // 存在，返回
+        R cached = bytes == null ? null : decodeEntry(key, bytes, type);
+        if(cached != null) {
+            redisHits.increment();
+            putLocal(key, cached);
+            // 快过期时按概率在后台提前重建，越接近过期、重建越慢，越容易触发，热点key不会真正过期
+            if(pttl > 0 && shouldRefreshEarly(keyPrefix, pttl)) {
+                refreshAsync(keyPrefix, id, dbFallBack, time, unit);
+            }
+            return cached;
+        }
+        // 不存在，在mysql数据库中查询，同一个key同时只有一个线程查询数据库，其他线程等待它的结果
+        if(!singleFlight) {
+            return loadAndCache(keyPrefix, id, type, dbFallBack, time, unit);
+        }
+        return loadOnce(key, () -> loadAndCache(keyPrefix, id, type, dbFallBack, time, unit));
+    }
+
+    // XFetch：-重建耗时 * beta * ln(random) >= 剩余有效期时提前刷新
+    private boolean shouldRefreshEarly(String keyPrefix, long pttl) {
+        double cost = rebuildCosts.getOrDefault(keyPrefix, DEFAULT_REBUILD_COST);
+        double random = 1 - ThreadLocalRandom.current().nextDouble();
+        return -cost * earlyRefreshBeta * Math.log(random) >= pttl;
+    }
+
+    // 在后台重建缓存，同一个key同时只有一个线程重建，集群中用redis锁去重
+    private <R, ID> void refreshAsync(String keyPrefix, ID id, Function<ID, R> dbFallBack, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        cacheRebuildExecutor.submit(key, () -> {
+            String lockKey = LOCK_CACHE_KEY + key;
+            String owner = trylock(lockKey);
+            if(owner == null) {
+                return;
+            }
+            try {
+                earlyRefreshes.increment();
+                rebuild(keyPrefix, id, dbFallBack, time, unit);
+            } finally {
+                unlock(lockKey, owner);
+            }
+        });
+    }
+
+    // 查询数据库并写入缓存
+    private <R, ID> R loadAndCache(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallBack, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        String lockKey = LOCK_CACHE_KEY + key;
+        String owner = null;
+        if(distributedLock) {
+            // 集群中同一个key只有一个节点查询数据库，没有获取到锁的节点等待缓存重建，最多等待lockWait
+            long deadline = System.currentTimeMillis() + lockWait;
+            while((owner = trylock(lockKey)) == null) {
+                if(System.currentTimeMillis() >= deadline) {
+                    // 等待超时，不再占用请求线程，自己查询数据库
+                    log.debug("等待缓存{}重建超时，直接查询数据库", key);
+                    return rebuild(keyPrefix, id, dbFallBack, time, unit);
+                }
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+                byte[] bytes = getBytes(key);
+                if(bytes != null) {
+                    R cached = bytes.length == 0 ? null : decodeEntry(key, bytes, type);
+                    if(bytes.length == 0 || cached != null) {
+                        return cached;
+                    }
+                }
+            }
+        }
+        try {
+            if(owner != null) {
+                // double check，获取锁之前其他节点可能已经重建了缓存
+                byte[] bytes = getBytes(key);
+                R cached = bytes == null || bytes.length == 0 ? null : decodeEntry(key, bytes, type);
+                if(bytes != null && (bytes.length == 0 || cached != null)) {
+                    return cached;
+                }
+            }
+            return rebuild(keyPrefix, id, dbFallBack, time, unit);
+        } finally {
+            if(owner != null) {
+                unlock(lockKey, owner);
+            }
         }
-        // 存在，将查询到的数据放到redis中
-        this.set(key, r, time, unit);
+    }
 
+    // 查询数据库写入缓存，并统计重建耗时
+    private <R, ID> R rebuild(String keyPrefix, ID id, Function<ID, R> dbFallBack, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        long begin = System.nanoTime();
+        dbLoads.increment();
+        R r = dbFallBack.apply(id);
+        // 不存在时把空值写道redis，防止缓存穿透
+        // 存在，将查询到的数据放到redis中，数据来自数据库，不用通知其他节点
+        // 带版本号的缓存，redis中已经是更新的版本时不写入，也不放入本地缓存
+        if(writeEntry(key, r, time, unit) && r != null) {
+            putLocal(key, r);
+        }
+        double cost = (System.nanoTime() - begin) / 1_000_000.0;
+        rebuildCosts.merge(keyPrefix, cost, (old, current) -> old * 0.8 + current * 0.2);
         // 返回数据
         return r;
     }
 
+    // 合并同一个key的并发加载，第一个线程执行loader，其他线程等待它的结果
+    @SuppressWarnings("unchecked")
+    private <R> R loadOnce(String key, Supplier<R> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> loading = inFlight.putIfAbsent(key, future);
+        if(loading != null) {
+            coalesced.increment();
+            try {
+                return (R) loading.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        try {
+            R r = loader.get();
+            future.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * 批量查询缓存，一次MGET查询redis，未命中的一次查询数据库，再用pipeline一次写回redis
+     * @param dbBatchFallback 根据未命中的id批量查询数据库，返回id到数据的映射，查不到的id不放入
+     * @return id到数据的映射，按ids的顺序，不存在的id不放入
+     */
+    public <R, ID> Map<ID, R> queryBatchWithPassThrough(
+            String keyPrefix, Collection<ID> ids, Class<R> type, Function<List<ID>, Map<ID, R>> dbBatchFallback, Long time, TimeUnit unit
+    ) {
+        Map<ID, R> result = new LinkedHashMap<>();
+        if(ids == null || ids.isEmpty()) {
+            return result;
+        }
+        List<ID> distinctIds = new ArrayList<>(new LinkedHashSet<>(ids));
+        requests.add(distinctIds.size());
+        // 先查本地缓存
+        List<ID> remoteIds = new ArrayList<>(distinctIds.size());
+        for (ID id : distinctIds) {
+            Object local = localCache == null ? null : localCache.getIfPresent(keyPrefix + id);
+            if(local != null) {
+                localHits.increment();
+                result.put(id, type.cast(local));
+            } else {
+                remoteIds.add(id);
+            }
+        }
+        if(remoteIds.isEmpty()) {
+            return sortByIds(distinctIds, result);
+        }
+        // 一次MGET查询redis
+        List<String> keys = remoteIds.stream().map(id -> keyPrefix + id).collect(Collectors.toList());
+        byte[][] rawKeys = keys.stream().map(CacheClient::rawKey).toArray(byte[][]::new);
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+        List<ID> missIds = new ArrayList<>();
+        for (int i = 0; i < remoteIds.size(); i++) {
+            byte[] bytes = values == null ? null : values.get(i);
+            // 空字符串表示数据库中不存在
+            if(bytes != null && bytes.length == 0) {
+                redisHits.increment();
+                continue;
+            }
+            R r = bytes == null ? null : decodeEntry(keys.get(i), bytes, type);
+            // 不存在，需要查询数据库
+            if(r == null) {
+                missIds.add(remoteIds.get(i));
+                continue;
+            }
+            redisHits.increment();
+            result.put(remoteIds.get(i), r);
+            putLocal(keys.get(i), r);
+        }
+        if(missIds.isEmpty()) {
+            return sortByIds(distinctIds, result);
+        }
+        // 未命中的id一次查询数据库
+        dbLoads.add(missIds.size());
+        Map<ID, R> loaded = dbBatchFallback.apply(missIds);
+        // 查询到的数据和空值用pipeline一次写回redis，防止缓存穿透
+        executeWritePipeline(connection -> {
+            for (ID id : missIds) {
+                R r = loaded == null ? null : loaded.get(id);
+                writeEntry(connection, keyPrefix + id, r,
+                        r == null ? expiration(CACHE_NULL_TTL, TimeUnit.MINUTES) : expiration(time, unit));
+            }
+        });
+        for (ID id : missIds) {
+            R r = loaded == null ? null : loaded.get(id);
+            if(r != null) {
+                result.put(id, r);
+                putLocal(keyPrefix + id, r);
+            }
+        }
+        return sortByIds(distinctIds, result);
+    }
+
+    // 按照查询时id的顺序返回
+    private <R, ID> Map<ID, R> sortByIds(List<ID> ids, Map<ID, R> values) {
+        Map<ID, R> sorted = new LinkedHashMap<>(values.size());
+        for (ID id : ids) {
+            R r = values.get(id);
+            if(r != null) {
+                sorted.put(id, r);
+            }
+        }
+        return sorted;
+    }
+
     //根据指定的key查询缓存，并反序列化为指定类型，利用逻辑过期解决缓存击穿问题
     public <R, ID> R queryWithLogicalExpire(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallBack, Long time, TimeUnit unit
     ) {
         String key = keyPrefix + id;
         // 在redis中查询商户
-        String json = stringRedisTemplate.opsForValue().get(key);
-        // 未命中，返回null
-        if(StrUtil.isBlank(json)) {
+        byte[] bytes = getBytes(key);
+        // 空值，数据库中不存在
+        if(bytes != null && bytes.length == 0) {
             return null;
         }
-        // 命中，将json反序列为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data, type);
-        // 判断逻辑缓存是否过期
-        LocalDateTime expireTime = redisData.getExpireTime();
+        // 命中，跳过版本号后8个字节是逻辑过期时间，后面的反序列为对象
+        int offset = versionOf(key) == null ? 0 : VERSION_HEADER;
+        R r = bytes == null || bytes.length <= offset + 8 || (offset > 0 && bytes[0] != VERSION_MARKER) ? null
+                : decode(key, Arrays.copyOfRange(bytes, offset + 8, bytes.length), type);
+        // 未命中（没有预热或者被淘汰）或者解码失败，查询数据库并写入逻辑过期的缓存，同一个key同时只有一个线程查询
+        if(r == null) {
+            if(!singleFlight) {
+                return loadWithLogicalExpire(keyPrefix, id, dbFallBack, time, unit);
+            }
+            return loadOnce(key, () -> loadWithLogicalExpire(keyPrefix, id, dbFallBack, time, unit));
+        }
+        long expireTime = ByteBuffer.wrap(bytes, offset, 8).getLong();
         // 未过期，直接返回
-        if(expireTime.isAfter(LocalDateTime.now())) {
+        if(expireTime > System.currentTimeMillis()) {
             return r;
         }
-        // 已过期，缓存重建
-        String lockKey = LOCK_SHOP_KEY+id;
-        // 获取锁
-        boolean isLock = trylock(lockKey);
-        // 获取到锁，开启线程，实现缓存重建
-        if(isLock) {
-            CACHE_REBUILD_EXECUTOR.submit(()->{
-                try{
-                    R r1 = dbFallBack.apply(id);
-                    this.setWithLogicalExpire(key, r1, time, unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    // 释放锁
-                    unlock(lockKey);
+        // 已过期，缓存重建，本节点已经在重建或者重建队列已满时直接返回旧数据
+        String lockKey = LOCK_CACHE_KEY + key;
+        cacheRebuildExecutor.submit(key, () -> {
+            // 获取锁，其他节点已经在重建时不再重建
+            String owner = trylock(lockKey);
+            if(owner == null) {
+                return;
+            }
+            try {
+                R r1 = dbFallBack.apply(id);
+                if(r1 == null) {
+                    // 数据库中已经不存在，删除缓存
+                    delete(key);
+                    return;
                 }
-            });
-        }
+                this.setWithLogicalExpire(key, r1, time, unit);
+            } finally {
+                // 释放锁
+                unlock(lockKey, owner);
+            }
+        });
         // 返回信息
         return r;
     }
 
-    // 获取锁
-    private boolean trylock(String key) {
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.MINUTES);
-        return BooleanUtil.isTrue(flag);
+    // 逻辑过期的缓存未命中时查询数据库，不存在的写入空值，防止缓存穿透
+    private <R, ID> R loadWithLogicalExpire(String keyPrefix, ID id, Function<ID, R> dbFallBack, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        dbLoads.increment();
+        R r = dbFallBack.apply(id);
+        if(r == null) {
+            // 带版本号的缓存，redis中已有数据时不写入空值
+            writeEntry(key, null, null, null);
+            return null;
+        }
+        setWithLogicalExpire(key, r, time, unit);
+        return r;
     }
 
-    // 释放锁
-    private void unlock(String key) {
-        stringRedisTemplate.delete(key);
+    /**
+     * 登记带版本号的缓存，这个前缀的缓存值第一个字节是版本标记，后面8个字节是版本号，写入时redis中已有更新的版本就不覆盖，
+     * 防止查询到旧数据的线程在数据更新后把旧数据写回缓存
+     * @param versionOf 从数据中取版本号，数据更新时版本号必须变大
+     */
+    public <R> void registerVersion(String keyPrefix, Class<R> type, ToLongFunction<R> versionOf) {
+        versions.put(keyPrefix, value -> versionOf.applyAsLong(type.cast(value)));
+    }
+
+    private ToLongFunction<Object> versionOf(String key) {
+        for (Map.Entry<String, ToLongFunction<Object>> entry : versions.entrySet()) {
+            if(key.startsWith(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 写入缓存，value为null时写入空值
+     * @return 是否写入，带版本号的缓存在redis中已有更新的版本时返回false
+     */
+    private boolean writeEntry(String key, Object value, Long time, TimeUnit unit) {
+        Expiration expiration = value == null ? expiration(CACHE_NULL_TTL, TimeUnit.MINUTES) : expiration(time, unit);
+        return writeBytes(key, value, value == null ? NULL_VALUE : cacheCodec.encode(value), expiration);
+    }
+
+    // 在pipeline中写入缓存
+    private void writeEntry(RedisConnection connection, String key, Object value, Expiration expiration) {
+        writeBytes(connection, key, value, value == null ? NULL_VALUE : cacheCodec.encode(value), expiration);
+    }
+
+    /**
+     * 写入编码后的缓存值，带版本号的缓存用脚本比较版本后写入
+     * @return 是否写入，带版本号的缓存在redis中已有更新的版本时返回false
+     */
+    private boolean writeBytes(String key, Object value, byte[] data, Expiration expiration) {
+        byte[][] args = casArgs(key, value, data, expiration);
+        if(args == null) {
+            setBytes(key, data, expiration);
+            return true;
+        }
+        Long result = stringRedisTemplate.execute(CAS_SCRIPT, RedisSerializer.byteArray(), CAS_RESULT_SERIALIZER,
+                Collections.singletonList(key), (Object[]) args);
+        return result != null && result == 1;
+    }
+
+    // 在pipeline中写入编码后的缓存值，带版本号的缓存用EVALSHA执行脚本
+    private void writeBytes(RedisConnection connection, String key, Object value, byte[] data, Expiration expiration) {
+        byte[][] args = casArgs(key, value, data, expiration);
+        if(args == null) {
+            connection.set(rawKey(key), data, expiration, RedisStringCommands.SetOption.UPSERT);
+            return;
+        }
+        connection.evalSha(CAS_SCRIPT.getSha1(), ReturnType.INTEGER, 1, rawKey(key), args[0], args[1], args[2]);
+    }
+
+    // 带版本号写入的脚本参数：版本号、数据前面加上版本标记和版本号、有效期毫秒数，没有登记版本号的缓存返回null
+    private byte[][] casArgs(String key, Object value, byte[] data, Expiration expiration) {
+        ToLongFunction<Object> versionOf = versionOf(key);
+        if(versionOf == null) {
+            return null;
+        }
+        // 空值不带版本号，redis中已有带版本号的数据时不写入，数据库中新增数据后不会被空值覆盖
+        long version = value == null ? 0 : versionOf.applyAsLong(value);
+        byte[] bytes = value == null ? NULL_VALUE
+                : ByteBuffer.allocate(VERSION_HEADER + data.length).put(VERSION_MARKER).putLong(version).put(data).array();
+        long ttl = expiration.isPersistent() ? 0 : expiration.getExpirationTimeInMilliseconds();
+        return new byte[][]{rawKey(String.valueOf(version)), bytes, rawKey(String.valueOf(ttl))};
+    }
+
+    /**
+     * 执行写入缓存的pipeline，pipeline中用EVALSHA执行脚本，
+     * redis中没有脚本（第一次执行或者redis重启）时先加载脚本再重新执行一次，带版本号的写入重复执行不会覆盖新数据
+     */
+    private void executeWritePipeline(Consumer<RedisConnection> writes) {
+        RedisCallback<Object> callback = connection -> {
+            writes.accept(connection);
+            return null;
+        };
+        try {
+            stringRedisTemplate.executePipelined(callback);
+        } catch (RuntimeException e) {
+            if(!isNoScriptError(e)) {
+                throw e;
+            }
+            stringRedisTemplate.execute((RedisCallback<String>) connection ->
+                    connection.scriptLoad(rawKey(CAS_SCRIPT.getScriptAsString())));
+            stringRedisTemplate.executePipelined(callback);
+        }
+    }
+
+    private static boolean isNoScriptError(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if(t.getMessage() != null && t.getMessage().contains("NOSCRIPT")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 解码缓存值，带版本号的缓存去掉前面的版本标记和版本号
+    private <R> R decodeEntry(String key, byte[] bytes, Class<R> type) {
+        if(versionOf(key) == null) {
+            return decode(key, bytes, type);
+        }
+        // 没有版本标记的旧格式当作未命中，重新查询后会被覆盖
+        return bytes.length <= VERSION_HEADER || bytes[0] != VERSION_MARKER ? null
+                : decode(key, Arrays.copyOfRange(bytes, VERSION_HEADER, bytes.length), type);
+    }
+
+    // 解码失败（比如实体类的字段变了）当作未命中，返回null
+    private <R> R decode(String key, byte[] bytes, Class<R> type) {
+        try {
+            return cacheCodec.decode(bytes, type);
+        } catch (Exception e) {
+            log.warn("缓存{}解码失败，重新查询数据库", key, e);
+            return null;
+        }
+    }
+
+    private byte[] getBytes(String key) {
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey(key)));
+    }
+
+    private void setBytes(String key, byte[] value, Expiration expiration) {
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection ->
+                connection.set(rawKey(key), value, expiration, RedisStringCommands.SetOption.UPSERT));
+    }
+
+    // 过期时间随机增加0~ttlJitter的比例，同时写入的key不会同时过期
+    private Expiration expiration(Long time, TimeUnit unit) {
+        if(time == null) {
+            return Expiration.persistent();
+        }
+        long millis = unit.toMillis(time);
+        if(ttlJitter > 0) {
+            millis += (long) (millis * ttlJitter * ThreadLocalRandom.current().nextDouble());
+        }
+        return Expiration.milliseconds(millis);
+    }
+
+    private static byte[] rawKey(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void putLocal(String key, Object value) {
+        if(localCache != null) {
+            localCache.put(key, value);
+        }
+        // 热点key在本地保存一份副本
+        if(hotKeyDetector != null && hotKeyDetector.isHot(key)) {
+            hotCache.put(key, value);
+        }
+    }
+
+    // 获取锁，成功时返回锁的持有者标识，失败时返回null
+    private String trylock(String key) {
+        String owner = LOCK_OWNER_PREFIX + lockSequence.incrementAndGet();
+        // 重建结束后按持有者释放，重建卡住或者节点宕机时等有效期到了自动释放
+        long lease = lockLease > 0 ? lockLease : rebuildTimeout + LOCK_LEASE_MARGIN;
+        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, owner, lease, TimeUnit.MILLISECONDS);
+        return BooleanUtil.isTrue(flag) ? owner : null;
+    }
+
+    // 释放锁，锁已经过期并被其他节点获取时不删除
+    private void unlock(String key, String owner) {
+        stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(key), owner);
     }
 
 }
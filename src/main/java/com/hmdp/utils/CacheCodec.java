@@ -0,0 +1,13 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的编解码，CacheClient用它把对象写入redis和从redis读出
+ * 容器中声明一个CacheCodec类型的bean即可替换默认实现
+ */
+public interface CacheCodec {
+    // 编码，value不为null
+    byte[] encode(Object value);
+
+    // 解码，data不为空
+    <R> R decode(byte[] data, Class<R> type);
+}
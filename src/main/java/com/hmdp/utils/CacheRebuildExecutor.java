@@ -0,0 +1,131 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 缓存重建线程池
+ * 队列有界，数据库变慢时多出来的重建任务直接丢弃，调用方继续返回旧数据；
+ * 同一个key同时只有一个重建任务；重建超过超时时间会被中断
+ */
+@Slf4j
+public class CacheRebuildExecutor {
+    private final ThreadPoolExecutor executor;
+    // 中断超时的重建任务
+    private final ScheduledExecutorService watchdog;
+    // 重建超时时间，单位毫秒
+    private final long timeout;
+
+    // 排队或正在重建的key
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    // 统计：提交、丢弃、重复、成功、失败、超时的次数，重建的总耗时和最大耗时
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder totalMillis = new LongAdder();
+    private final AtomicLong maxMillis = new AtomicLong();
+
+    public CacheRebuildExecutor(int threads, int queueCapacity, long timeout) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "cache-rebuild-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cache-rebuild-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timeout = timeout;
+    }
+
+    /**
+     * 提交重建任务
+     * @return 是否提交成功，同一个key已经在重建或者队列已满时返回false
+     */
+    public boolean submit(String key, Runnable task) {
+        if(!pending.add(key)) {
+            deduplicated.increment();
+            return false;
+        }
+        try {
+            executor.execute(() -> run(key, task));
+            submitted.increment();
+            return true;
+        } catch (RejectedExecutionException e) {
+            pending.remove(key);
+            rejected.increment();
+            log.warn("缓存重建队列已满，丢弃{}的重建任务", key);
+            return false;
+        }
+    }
+
+    private void run(String key, Runnable task) {
+        Thread worker = Thread.currentThread();
+        long begin = System.currentTimeMillis();
+        // 超时后中断重建线程
+        Future<?> interrupter = watchdog.schedule(() -> {
+            timedOut.increment();
+            log.warn("缓存{}重建超过{}ms，中断重建", key, timeout);
+            worker.interrupt();
+        }, timeout, TimeUnit.MILLISECONDS);
+        try {
+            task.run();
+            succeeded.increment();
+        } catch (Exception e) {
+            failed.increment();
+            log.error("缓存{}重建失败", key, e);
+        } finally {
+            interrupter.cancel(false);
+            // 清除可能残留的中断标记，不影响下一个任务
+            Thread.interrupted();
+            long cost = System.currentTimeMillis() - begin;
+            totalMillis.add(cost);
+            maxMillis.accumulateAndGet(cost, Math::max);
+            pending.remove(key);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        long finished = succeeded.sum() + failed.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("queueSize", executor.getQueue().size());
+        stats.put("active", executor.getActiveCount());
+        stats.put("submitted", submitted.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("deduplicated", deduplicated.sum());
+        stats.put("succeeded", succeeded.sum());
+        stats.put("failed", failed.sum());
+        stats.put("timedOut", timedOut.sum());
+        stats.put("avgMillis", finished == 0 ? 0 : totalMillis.sum() / finished);
+        stats.put("maxMillis", maxMillis.get());
+        return stats;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        watchdog.shutdownNow();
+    }
+}
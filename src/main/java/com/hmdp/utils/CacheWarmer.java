@@ -0,0 +1,158 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.IShopTypeService;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TTL;
+
+/**
+ * 启动时预热缓存
+ * 先加载商户类型，再按销量流式查询热门商户，分批用pipeline写入redis；
+ * 在ApplicationRunner中同步执行，预热结束后spring才发布ApplicationReadyEvent，就绪状态才变为ACCEPTING_TRAFFIC
+ */
+@Slf4j
+@Component
+public class CacheWarmer implements ApplicationRunner {
+    // 是否在启动时预热
+    @Value("${hmdp.warm-up.enabled:false}")
+    private boolean enabled;
+    // 预热销量最高的多少个商户
+    @Value("${hmdp.warm-up.shop-limit:10000}")
+    private int shopLimit;
+    // 每批写入redis的商户数量
+    @Value("${hmdp.warm-up.batch-size:500}")
+    private int batchSize;
+    // 同时写入redis的线程数
+    @Value("${hmdp.warm-up.concurrency:4}")
+    private int concurrency;
+    // 商户缓存是否使用逻辑过期
+    @Value("${hmdp.cache.shop-logical-expire:false}")
+    private boolean shopLogicalExpire;
+
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private IShopTypeService shopTypeService;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    // 预热状态：NOT_STARTED、RUNNING、DONE、FAILED
+    private volatile String state = "NOT_STARTED";
+    // 需要预热和已经预热的商户数量
+    private volatile long total;
+    private final AtomicLong warmed = new AtomicLong();
+    private volatile long beginTime;
+    private volatile long endTime;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if(!enabled) {
+            return;
+        }
+        // 预热失败不影响启动，未预热的商户查询时从数据库加载
+        warmUp();
+    }
+
+    public void warmUp() {
+        state = "RUNNING";
+        beginTime = System.currentTimeMillis();
+        warmed.set(0);
+        // 写入redis的线程池，队列满了由查询线程自己写入，控制读取速度
+        ThreadPoolExecutor writers = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(concurrency), new ThreadPoolExecutor.CallerRunsPolicy());
+        // 写入线程的第一个异常
+        AtomicReference<Exception> writeError = new AtomicReference<>();
+        try {
+            // 商户类型，查询时不存在会写入缓存
+            shopTypeService.queryList();
+            // 热门商户
+            total = Math.min(shopLimit, shopMapper.selectCount(null));
+            transactionTemplate.execute(status -> {
+                // 游标需要在事务中遍历
+                try (Cursor<Shop> cursor = shopMapper.scanTopShops(shopLimit)) {
+                    List<Shop> batch = new ArrayList<>(batchSize);
+                    for (Shop shop : cursor) {
+                        batch.add(shop);
+                        if(batch.size() >= batchSize) {
+                            List<Shop> shops = batch;
+                            writers.execute(() -> {
+                                try {
+                                    writeShops(shops);
+                                } catch (Exception e) {
+                                    writeError.compareAndSet(null, e);
+                                }
+                            });
+                            batch = new ArrayList<>(batchSize);
+                        }
+                    }
+                    if(!batch.isEmpty()) {
+                        writeShops(batch);
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                return null;
+            });
+            writers.shutdown();
+            if(!writers.awaitTermination(10, TimeUnit.MINUTES)) {
+                throw new IllegalStateException("等待写入redis超时");
+            }
+            if(writeError.get() != null) {
+                throw writeError.get();
+            }
+            state = "DONE";
+            log.info("缓存预热完成，商户{}个，耗时{}ms", warmed.get(), System.currentTimeMillis() - beginTime);
+        } catch (Exception e) {
+            state = "FAILED";
+            log.error("缓存预热失败", e);
+        } finally {
+            writers.shutdownNow();
+            endTime = System.currentTimeMillis();
+        }
+    }
+
+    private void writeShops(List<Shop> shops) {
+        Map<String, Shop> values = new LinkedHashMap<>(shops.size() * 2);
+        shops.forEach(shop -> values.put(CACHE_SHOP_KEY + shop.getId(), shop));
+        if(shopLogicalExpire) {
+            cacheClient.setAllWithLogicalExpire(values, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        } else {
+            cacheClient.setAll(values, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        }
+        warmed.addAndGet(shops.size());
+    }
+
+    // 预热进度
+    public Map<String, Object> progress() {
+        Map<String, Object> progress = new LinkedHashMap<>();
+        progress.put("state", state);
+        progress.put("total", total);
+        progress.put("warmed", warmed.get());
+        progress.put("percent", total == 0 ? 0 : warmed.get() * 100 / total);
+        progress.put("costMillis", beginTime == 0 ? 0 : (endTime >= beginTime ? endTime : System.currentTimeMillis()) - beginTime);
+        return progress;
+    }
+}
@@ -0,0 +1,72 @@
+package com.hmdp.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 压缩大的缓存值，编码后超过阈值的数据用deflate压缩，小数据原样保存
+ */
+public class CompressingCacheCodec implements CacheCodec {
+    // 压缩标记，JSON和Kryo的第一个字节都不会是它
+    private static final byte DEFLATED = 0x1F;
+
+    private final CacheCodec delegate;
+    // 超过这个字节数才压缩
+    private final int threshold;
+
+    public CompressingCacheCodec(CacheCodec delegate, int threshold) {
+        this.delegate = delegate;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        byte[] data = delegate.encode(value);
+        if(data.length <= threshold) {
+            return data;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+            out.write(DEFLATED);
+            byte[] buffer = new byte[1024];
+            while(!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            byte[] compressed = out.toByteArray();
+            // 压缩后没有变小，保存原数据
+            return compressed.length < data.length ? compressed : data;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public <R> R decode(byte[] data, Class<R> type) {
+        if(data[0] != DEFLATED) {
+            return delegate.decode(data, type);
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, 1, data.length - 1);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 3);
+            byte[] buffer = new byte[1024];
+            while(!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if(n == 0 && inflater.needsInput()) {
+                    throw new IllegalStateException("压缩数据不完整");
+                }
+                out.write(buffer, 0, n);
+            }
+            return delegate.decode(out.toByteArray(), type);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("解压缓存数据失败", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.hmdp.utils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.Collectors;
+
+/**
+ * 热点key探测
+ * 按采样率把key的访问记录到count-min sketch中，估计的访问次数超过阈值的key是热点key；
+ * 定时把所有计数减半，不再被访问的key逐渐冷却，低于阈值后不再是热点key
+ */
+public class HotKeyDetector {
+    // 每个key用几个哈希函数计数
+    private static final int DEPTH = 4;
+
+    // 每行的计数器个数，2的幂
+    private final int width;
+    // DEPTH行计数器
+    private final AtomicIntegerArray counters;
+    // 采样率，0.1表示每10次访问记录1次
+    private final double sampleRate;
+    // 一个衰减周期内的访问次数超过它就是热点key
+    private final long threshold;
+
+    // 当前的热点key和估计的访问次数
+    private final Map<String, Long> hotKeys = new ConcurrentHashMap<>();
+
+    public HotKeyDetector(int width, double sampleRate, long threshold) {
+        this.width = Integer.highestOneBit(Math.max(width, 16));
+        this.counters = new AtomicIntegerArray(DEPTH * this.width);
+        this.sampleRate = sampleRate;
+        this.threshold = threshold;
+    }
+
+    /**
+     * 记录一次访问
+     * @return key是不是热点key
+     */
+    public boolean record(String key) {
+        if(sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return hotKeys.containsKey(key);
+        }
+        int min = Integer.MAX_VALUE;
+        int h1 = spread(key.hashCode());
+        int h2 = spread(h1 ^ 0x9e3779b9);
+        for (int i = 0; i < DEPTH; i++) {
+            int count = counters.incrementAndGet(index(i, h1, h2));
+            min = Math.min(min, count);
+        }
+        long estimate = (long) (min / sampleRate);
+        if(estimate >= threshold) {
+            hotKeys.put(key, estimate);
+            return true;
+        }
+        return hotKeys.containsKey(key);
+    }
+
+    public boolean isHot(String key) {
+        return hotKeys.containsKey(key);
+    }
+
+    /**
+     * 所有计数减半，返回冷却后不再是热点的key
+     */
+    public List<String> decay() {
+        for (int i = 0; i < counters.length(); i++) {
+            int count = counters.get(i);
+            if(count > 0) {
+                counters.addAndGet(i, -(count - (count >> 1)));
+            }
+        }
+        List<String> cooled = new ArrayList<>();
+        hotKeys.replaceAll((key, old) -> estimate(key));
+        hotKeys.entrySet().removeIf(entry -> {
+            if(entry.getValue() < threshold) {
+                cooled.add(entry.getKey());
+                return true;
+            }
+            return false;
+        });
+        return cooled;
+    }
+
+    // 访问次数最多的k个热点key
+    public Map<String, Long> topK(int k) {
+        return hotKeys.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()))
+                .limit(k)
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (a, b) -> a, LinkedHashMap::new));
+    }
+
+    private long estimate(String key) {
+        int min = Integer.MAX_VALUE;
+        int h1 = spread(key.hashCode());
+        int h2 = spread(h1 ^ 0x9e3779b9);
+        for (int i = 0; i < DEPTH; i++) {
+            min = Math.min(min, counters.get(index(i, h1, h2)));
+        }
+        return (long) (min / sampleRate);
+    }
+
+    // 用两个哈希值模拟DEPTH个哈希函数，h2取奇数保证不同行的位置不同
+    private int index(int row, int h1, int h2) {
+        return row * width + ((h1 + row * (h2 | 1)) & (width - 1));
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,20 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * JSON编解码，与原来直接用JSONUtil写入的缓存格式一致
+ */
+public class JsonCacheCodec implements CacheCodec {
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <R> R decode(byte[] data, Class<R> type) {
+        return JSONUtil.toBean(new String(data, StandardCharsets.UTF_8), type);
+    }
+}
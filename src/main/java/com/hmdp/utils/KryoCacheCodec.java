@@ -0,0 +1,66 @@
+package com.hmdp.utils;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.util.Pool;
+
+/**
+ * Kryo二进制编解码，只写字段值，不写字段名，比JSON更小，编解码也更快
+ * 第一个字节是格式标记，不是这个标记的数据按JSON解码，切换编码时不用清空缓存
+ * 实体类增删字段后，旧的缓存会解码失败，CacheClient会当作未命中重新查询数据库
+ */
+public class KryoCacheCodec implements CacheCodec {
+    // 格式标记，JSON的第一个字节都是可见字符
+    private static final byte MAGIC = 0x01;
+
+    // Kryo不是线程安全的，用对象池复用
+    private final Pool<Kryo> kryoPool = new Pool<Kryo>(true, false, 64) {
+        @Override
+        protected Kryo create() {
+            Kryo kryo = new Kryo();
+            // 缓存的实体类不需要提前注册
+            kryo.setRegistrationRequired(false);
+            kryo.setReferences(false);
+            return kryo;
+        }
+    };
+    private final Pool<Output> outputPool = new Pool<Output>(true, false, 64) {
+        @Override
+        protected Output create() {
+            return new Output(1024, -1);
+        }
+    };
+
+    private final JsonCacheCodec jsonCacheCodec = new JsonCacheCodec();
+
+    @Override
+    public byte[] encode(Object value) {
+        Kryo kryo = kryoPool.obtain();
+        Output output = outputPool.obtain();
+        try {
+            output.reset();
+            output.writeByte(MAGIC);
+            kryo.writeObject(output, value);
+            return output.toBytes();
+        } finally {
+            outputPool.free(output);
+            kryoPool.free(kryo);
+        }
+    }
+
+    @Override
+    public <R> R decode(byte[] data, Class<R> type) {
+        if(data[0] != MAGIC) {
+            // 切换编码之前写入的JSON
+            return jsonCacheCodec.decode(data, type);
+        }
+        Kryo kryo = kryoPool.obtain();
+        try {
+            Input input = new Input(data, 1, data.length - 1);
+            return kryo.readObject(input, type);
+        } finally {
+            kryoPool.free(kryo);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.dto.UserDTO;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 登录用户的本地缓存
+ * 根据token查询用户时先查本地缓存，本地没有时用一个pipeline查询redis中的用户并刷新有效期，
+ * 本地命中时，剩余有效期低于阈值才刷新有效期；
+ * 登出时通过发布订阅删除各节点的本地缓存，消息丢失时本地缓存过期后也会失效
+ */
+@Component
+public class LoginSessionCache {
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer redisMessageListenerContainer;
+
+    // 本地缓存的有效期，单位秒，也是登出后其他节点最多还能识别token的时间
+    @Value("${hmdp.login.local-ttl:30}")
+    private long localTtl;
+    // 本地最多缓存多少个token
+    @Value("${hmdp.login.local-maximum-size:100000}")
+    private long localMaximumSize;
+    // token剩余有效期低于这个值时才刷新有效期，单位分钟
+    @Value("${hmdp.login.renew-threshold:35000}")
+    private long renewThreshold;
+
+    // token到登录用户的本地缓存
+    private Cache<String, Session> sessions;
+
+    public LoginSessionCache(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer redisMessageListenerContainer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redisMessageListenerContainer = redisMessageListenerContainer;
+    }
+
+    @PostConstruct
+    private void init() {
+        sessions = Caffeine.newBuilder()
+                .maximumSize(localMaximumSize)
+                .expireAfterWrite(localTtl, TimeUnit.SECONDS)
+                .build();
+        // 其他节点登出时删除本地缓存
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> sessions.invalidate(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(LOGIN_LOGOUT_CHANNEL));
+    }
+
+    /**
+     * 根据token查询登录用户
+     * @return 登录用户，token无效时返回null
+     */
+    public UserDTO resolve(String token) {
+        long now = System.currentTimeMillis();
+        Session session = sessions.getIfPresent(token);
+        if(session == null) {
+            session = load(token, now);
+            if(session == null) {
+                return null;
+            }
+            sessions.put(token, session);
+        }
+        // 剩余有效期低于阈值时刷新
+        if(session.expireAt - now < TimeUnit.MINUTES.toMillis(renewThreshold)) {
+            stringRedisTemplate.expire(LOGIN_USER_KEY + token, LOGIN_USER_TTL, TimeUnit.MINUTES);
+            session.expireAt = now + TimeUnit.MINUTES.toMillis(LOGIN_USER_TTL);
+        }
+        return session.user;
+    }
+
+    // 登出，删除redis中的token，并通知各节点删除本地缓存
+    public void revoke(String token) {
+        stringRedisTemplate.delete(LOGIN_USER_KEY + token);
+        sessions.invalidate(token);
+        stringRedisTemplate.convertAndSend(LOGIN_LOGOUT_CHANNEL, token);
+    }
+
+    // 一个pipeline查询用户信息并刷新有效期，本地未命中时只访问一次redis
+    // 每个节点每个token最多每localTtl秒刷新一次，不用先查询剩余有效期再决定是否刷新
+    @SuppressWarnings("unchecked")
+    private Session load(String token, long now) {
+        String key = LOGIN_USER_KEY + token;
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+            connection.hGetAll(rawKey);
+            connection.expire(rawKey, TimeUnit.MINUTES.toSeconds(LOGIN_USER_TTL));
+            return null;
+        }, RedisSerializer.byteArray());
+        Map<byte[], byte[]> map = (Map<byte[], byte[]>) results.get(0);
+        // 用户不存在或token已经过期
+        if(map == null || map.isEmpty() || !Boolean.TRUE.equals(results.get(1))) {
+            return null;
+        }
+        UserDTO userDTO = UserDTOCodec.decode(map);
+        return new Session(userDTO, now + TimeUnit.MINUTES.toMillis(LOGIN_USER_TTL));
+    }
+
+    private static class Session {
+        private final UserDTO user;
+        // redis中token的过期时间
+        private volatile long expireAt;
+
+        private Session(UserDTO user, long expireAt) {
+            this.user = user;
+            this.expireAt = expireAt;
+        }
+    }
+}
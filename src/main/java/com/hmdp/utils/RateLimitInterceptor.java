@@ -0,0 +1,54 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * 按IP限流的拦截器，手机号在请求体中，按手机号的限流在service中进行
+ */
+public class RateLimitInterceptor implements HandlerInterceptor {
+    private SlidingWindowRateLimiter rateLimiter;
+    // 从哪个请求头获取客户端IP，为空时使用连接的地址
+    private String ipHeader;
+
+    public RateLimitInterceptor(SlidingWindowRateLimiter rateLimiter, String ipHeader) {
+        this.rateLimiter = rateLimiter;
+        this.ipHeader = ipHeader;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        String ip = clientIp(request);
+        // 本地预过滤，不访问redis
+        if(!rateLimiter.allowLocally(ip)) {
+            reject(response, 1000);
+            return false;
+        }
+        long wait = rateLimiter.acquireByIp(request.getServletPath(), ip);
+        if(wait > 0) {
+            reject(response, wait);
+            return false;
+        }
+        return true;
+    }
+
+    private String clientIp(HttpServletRequest request) {
+        if(StrUtil.isNotBlank(ipHeader)) {
+            String ip = request.getHeader(ipHeader);
+            if(StrUtil.isNotBlank(ip)) {
+                // X-Forwarded-For可能有多个地址，前面的地址客户端可以伪造，只信任最后一个代理追加的地址
+                return ip.substring(ip.lastIndexOf(',') + 1).trim();
+            }
+        }
+        return request.getRemoteAddr();
+    }
+
+    // 返回状态码：429 请求太频繁
+    private void reject(HttpServletResponse response, long waitMillis) {
+        response.setStatus(429);
+        response.setHeader("Retry-After", String.valueOf((waitMillis + 999) / 1000));
+    }
+}
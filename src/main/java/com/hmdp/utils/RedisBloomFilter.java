@@ -0,0 +1,145 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于redis bitmap的布隆过滤器，位数组保存在redis中，所有节点共用
+ * 判断不存在的一定不存在，判断存在的有一定的误判率
+ * 位数组的key带上参数，参数变化时在新key上构建，构建完成后再切换，旧key延迟删除
+ */
+public class RedisBloomFilter {
+    // redis中bitmap最多2^32位
+    private static final long MAX_BITS = 1L << 32;
+    // 切换到新的位数组后，旧位数组保留的时间，让还在使用旧参数的节点继续可用
+    private static final long OLD_KEY_TTL_HOURS = 24;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    // 位数组的key，前缀加上位数和哈希函数个数
+    private final String key;
+    // 当前构建完成的位数组的key，构建完成后写入，其他节点据此判断位数组是否可用
+    private final String metaKey;
+    // 位数组的位数
+    private final long numBits;
+    // 哈希函数的个数
+    private final int numHashes;
+    // 位数组是否构建完成，构建完成前所有元素都判断为可能存在
+    private volatile boolean ready;
+
+    /**
+     * @param expectedInsertions 预计的元素数量
+     * @param fpp 期望的误判率
+     */
+    public RedisBloomFilter(StringRedisTemplate stringRedisTemplate, String key, long expectedInsertions, double fpp) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.metaKey = key + ":meta";
+        long n = Math.max(expectedInsertions, 1);
+        // m = -n * ln(p) / (ln2)^2
+        this.numBits = Math.min(MAX_BITS, Math.max(64, (long) (-n * Math.log(fpp) / (Math.log(2) * Math.log(2)))));
+        // k = m / n * ln2
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+        this.key = key + ":" + numBits + ":" + numHashes;
+    }
+
+    /**
+     * 判断元素是否可能存在
+     * @return false：一定不存在，true：可能存在
+     */
+    public boolean mightContain(Object value) {
+        if(!ready) {
+            return true;
+        }
+        long[] offsets = offsets(value);
+        // 一次pipeline查询位数组是否存在和所有位
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.exists(key);
+            for (long offset : offsets) {
+                conn.getBit(key, offset);
+            }
+            return null;
+        });
+        // 位数组丢失（被淘汰、误删或者已经切换到新参数）时不拦截，当作可能存在
+        if(!Boolean.TRUE.equals(results.get(0))) {
+            return true;
+        }
+        for (Object bit : results.subList(1, results.size())) {
+            if(!Boolean.TRUE.equals(bit)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void add(Object value) {
+        addAll(Collections.singletonList(value));
+    }
+
+    // 一次pipeline添加一批元素
+    public void addAll(Collection<?> values) {
+        if(values.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Object value : values) {
+                for (long offset : offsets(value)) {
+                    conn.setBit(key, offset, true);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 初始化位数组，redis中已有参数相同的位数组时直接使用，否则在自己的key上重新构建
+     * @param loader 把所有元素交给addAll，可以分批添加
+     */
+    public void init(Runnable loader) {
+        String current = stringRedisTemplate.opsForValue().get(metaKey);
+        if(key.equals(current) && Boolean.TRUE.equals(stringRedisTemplate.hasKey(key))) {
+            ready = true;
+            return;
+        }
+        // 在新key上构建，使用旧参数的节点继续读旧key，不受影响
+        // 多个节点同时构建也只是重复设置相同的位，构建完成后才切换
+        loader.run();
+        stringRedisTemplate.opsForValue().set(metaKey, key);
+        if(current != null && !current.equals(key)) {
+            // 旧位数组延迟删除，过期后还在使用它的节点当作可能存在
+            stringRedisTemplate.expire(current, OLD_KEY_TTL_HOURS, TimeUnit.HOURS);
+        }
+        ready = true;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public long getNumBits() {
+        return numBits;
+    }
+
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    // 用两个64位哈希值模拟k个哈希函数，g(i) = h1 + i * h2
+    private long[] offsets(Object value) {
+        long[] hash = MurmurHash.hash128(value.toString());
+        long[] offsets = new long[numHashes];
+        long combined = hash[0];
+        for (int i = 0; i < numHashes; i++) {
+            combined += hash[1];
+            offsets[i] = (combined & Long.MAX_VALUE) % numBits;
+        }
+        return offsets;
+    }
+}
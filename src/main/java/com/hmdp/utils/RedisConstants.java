@@ -5,6 +5,9 @@ public class RedisConstants {
     public static final Long LOGIN_CODE_TTL = 2L;
     public static final String LOGIN_USER_KEY = "login:token:";
     public static final Long LOGIN_USER_TTL = 36000L;
+    public static final String LOGIN_LOGOUT_CHANNEL = "login:logout";
+    public static final String LOGIN_REVOKED_KEY = "login:revoked:";
+    public static final String RATE_LIMIT_KEY = "rate:";
 
     public static final Long CACHE_NULL_TTL = 2L;
 
@@ -12,12 +15,27 @@ public class RedisConstants {
     public static final String CACHE_SHOP_KEY = "cache:shop:";
     public static final String CACHE_SHOP_TYPE_KEY = "cache:shop:type:";
     public static final Long CACHE_SHOP_TYPE_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String LOCK_CACHE_KEY = "lock:";
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_BUYER_KEY = "seckill:buyer:";
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final String SECKILL_WINDOW_KEY = "seckill:window:";
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_DEAD_LETTER_SUFFIX = ":dead-letter";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:sold-out";
+    public static final String SECKILL_RESTOCK_CHANNEL = "seckill:restock";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
+    public static final String BLOOM_SHOP_KEY = "bloom:shop";
     public static final String SHOP_GEO_KEY = "shop:geo:";
     public static final String USER_SIGN_KEY = "sign:";
+    public static final String LOCK_SIGN_COMPACT_KEY = "lock:sign:compact";
 }
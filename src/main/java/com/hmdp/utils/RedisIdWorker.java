@@ -1,11 +1,19 @@
 package com.hmdp.utils;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Component
 public class RedisIdWorker {
@@ -17,8 +25,20 @@ public class RedisIdWorker {
     // 序列号的位数
     private static final int COUNT_BITS = 32;
 
-    public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
+    // 日期格式，精确到天
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    // 号段长度，每次从redis中申请这么多个序列号在本地分配，0表示每个id都访问一次redis
+    private final int segmentStep;
+
+    // 每种业务的号段
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+    // 异步预取下一个号段的线程池
+    private final ExecutorService segmentLoader = Executors.newSingleThreadExecutor();
+
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate, @Value("${hmdp.id.segment-step:0}") int segmentStep) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.segmentStep = segmentStep;
     }
 
     // 获取id
@@ -29,11 +49,92 @@ public class RedisIdWorker {
         long timeStamp = nowSecond-BEGIN_TIMESTAMP;
         // 生成序列号
         // 获取当前日期，精准到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        // 自增长
-        long count = stringRedisTemplate.opsForValue().increment("incr:" + keyPrifix + ":" + date);
+        String date = now.format(DATE_FORMATTER);
+        long count;
+        if(segmentStep > 0) {
+            // 从本地号段中分配
+            count = buffers.computeIfAbsent(keyPrifix, SegmentBuffer::new).next(date);
+        } else {
+            // 自增长
+            count = stringRedisTemplate.opsForValue().increment("incr:" + keyPrifix + ":" + date);
+        }
 
         // 拼接并返回
         return timeStamp<<COUNT_BITS | count;
     }
+
+    // 关闭预取号段的线程池
+    @PreDestroy
+    public void shutdown() {
+        segmentLoader.shutdownNow();
+    }
+
+    // 号段，[cursor, end]之间的序列号可以在本地分配
+    private static class Segment {
+        private final String date;
+        private final AtomicLong cursor;
+        private final long end;
+
+        private Segment(String date, long begin, long end) {
+            this.date = date;
+            this.cursor = new AtomicLong(begin);
+            this.end = end;
+        }
+    }
+
+    // 一种业务的号段缓冲，当前号段用掉80%时异步预取下一个号段
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile Segment next;
+        private final AtomicBoolean loading = new AtomicBoolean();
+
+        private SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        private long next(String date) {
+            while(true) {
+                Segment segment = current;
+                if(segment != null && segment.date.equals(date)) {
+                    long count = segment.cursor.getAndIncrement();
+                    if(count <= segment.end) {
+                        // 剩余20%时预取下一个号段
+                        if(segment.end - count == segmentStep / 5) {
+                            prefetch(date);
+                        }
+                        return count;
+                    }
+                }
+                // 当前号段用完或者已经跨天，切换号段
+                synchronized (this) {
+                    if(current != segment) {
+                        continue;
+                    }
+                    Segment prefetched = next;
+                    next = null;
+                    current = prefetched != null && prefetched.date.equals(date) ? prefetched : load(date);
+                }
+            }
+        }
+
+        private void prefetch(String date) {
+            if(!loading.compareAndSet(false, true)) {
+                return;
+            }
+            segmentLoader.submit(() -> {
+                try {
+                    next = load(date);
+                } finally {
+                    loading.set(false);
+                }
+            });
+        }
+
+        // 一次申请一个号段 INCRBY incr:order:2024:04:01 1000
+        private Segment load(String date) {
+            Long end = stringRedisTemplate.opsForValue().increment("incr:" + keyPrefix + ":" + date, segmentStep);
+            return new Segment(date, end - segmentStep + 1, end);
+        }
+    }
 }
@@ -0,0 +1,116 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存分片的key路由
+ * 一张优惠券的库存可以拆分到多个分片，每个分片的库存、购买用户和订单消息队列使用同一个hash tag，
+ * 保证在redis集群中落在同一个slot，可以在一个lua脚本中操作；不同分片落在不同的slot，分摊热点
+ */
+@Component
+public class SeckillKeyRouter {
+    // hash tag槽位数，也是订单消息队列的个数
+    @Value("${hmdp.seckill.stock-slots:1}")
+    private int slots;
+    // 是否用bitmap记录购买过的用户，用户id作为bit的偏移量，比set节省内存
+    @Value("${hmdp.seckill.buyer-bitmap:false}")
+    private boolean buyerBitmap;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    // 优惠券的分片数，创建后不会再变化，缓存在本地
+    private final Map<Long, Integer> shardsOfVoucher = new ConcurrentHashMap<>();
+
+    public SeckillKeyRouter(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    // 保存优惠券的分片数，分片数不能超过槽位数
+    public int saveShards(Long voucherId, Integer shards) {
+        int count = Math.max(1, Math.min(shards == null ? 1 : shards, slots));
+        stringRedisTemplate.opsForValue().set(SECKILL_SHARDS_KEY + voucherId, String.valueOf(count));
+        shardsOfVoucher.put(voucherId, count);
+        return count;
+    }
+
+    // 获取优惠券的分片数，没有记录的优惠券只有一个分片
+    public int shardsOf(Long voucherId) {
+        Integer cached = shardsOfVoucher.get(voucherId);
+        if(cached != null) {
+            return cached;
+        }
+        String shards = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + voucherId);
+        if(StrUtil.isBlank(shards)) {
+            // 没有记录时不缓存，优惠券可能稍后在其他节点创建
+            return 1;
+        }
+        int count = Integer.parseInt(shards);
+        shardsOfVoucher.put(voucherId, count);
+        return count;
+    }
+
+    // 用户固定购买的分片，一人一单的记录也保存在这个分片上
+    public int homeShard(Long voucherId, Long userId) {
+        return Math.floorMod(Long.hashCode(userId), shardsOf(voucherId));
+    }
+
+    // 分片所在的槽位，不同优惠券的分片错开，避免都集中在前几个槽位
+    public int slotOf(Long voucherId, int shard) {
+        return (int) Math.floorMod(voucherId + shard, (long) slots);
+    }
+
+    public String stockKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + hashTag(slotOf(voucherId, shard)) + ":" + voucherId;
+    }
+
+    public boolean isBuyerBitmap() {
+        return buyerBitmap;
+    }
+
+    // 记录购买用户的key，bitmap按用户id分块，每块2^20位（128KB），id稀疏时只会创建用到的块
+    public String orderKey(Long voucherId, int shard, Long userId) {
+        if(buyerBitmap) {
+            return SECKILL_BUYER_KEY + hashTag(slotOf(voucherId, shard)) + ":" + voucherId + ":" + (userId >>> BUYER_CHUNK_BITS);
+        }
+        return SECKILL_ORDER_KEY + hashTag(slotOf(voucherId, shard)) + ":" + voucherId;
+    }
+
+    // 购买用户在key中的成员，set中是用户id，bitmap中是块内的偏移量
+    public String buyerMember(Long userId) {
+        if(buyerBitmap) {
+            return String.valueOf(userId & ((1L << BUYER_CHUNK_BITS) - 1));
+        }
+        return userId.toString();
+    }
+
+    public String windowKey(Long voucherId, int shard) {
+        return SECKILL_WINDOW_KEY + hashTag(slotOf(voucherId, shard)) + ":" + voucherId;
+    }
+
+    public String streamKey(Long voucherId, int shard) {
+        return streamKey(slotOf(voucherId, shard));
+    }
+
+    public String streamKey(int slot) {
+        return SECKILL_ORDER_STREAM + ":" + hashTag(slot);
+    }
+
+    // bitmap每块的位数
+    private static final int BUYER_CHUNK_BITS = 20;
+
+    private static String hashTag(int slot) {
+        return "{" + slot + "}";
+    }
+}
@@ -0,0 +1,228 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_RESTOCK_CHANNEL;
+
+/**
+ * 秒杀库存租借
+ * 节点每次从redis的分片库存中租借一批库存，在本地用原子计数器扣减，减少对库存key的访问；
+ * 活动结束或者节点关闭时，把没有卖完的库存还回redis
+ */
+@Slf4j
+@Component
+public class SeckillStockLease {
+    // 每次租借的库存数量，0表示不租借，每次购买都到redis中扣库存
+    @Value("${hmdp.seckill.stock-lease:0}")
+    private int leaseSize;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillKeyRouter seckillKeyRouter;
+
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("seckill_lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    // 优惠券当前租借的库存
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+    // 优惠券的活动时间，{开始时间戳, 结束时间戳, 过期时间戳}，过期后重新从redis读取
+    private final Map<Long, long[]> windows = new ConcurrentHashMap<>();
+    // 活动时间在本地缓存的时间，单位毫秒
+    @Value("${hmdp.seckill.window-cache-ttl:60000}")
+    private long windowCacheTtl;
+    // 每张优惠券一把锁，租借、归还库存时只锁住这张优惠券
+    private final Map<Long, Object> locks = new ConcurrentHashMap<>();
+    // 在本节点购买过的用户，先在本地判断一人一单
+    private final Map<Long, Set<Long>> buyers = new ConcurrentHashMap<>();
+
+    public SeckillStockLease(StringRedisTemplate stringRedisTemplate, SeckillKeyRouter seckillKeyRouter) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillKeyRouter = seckillKeyRouter;
+    }
+
+    public boolean isEnabled() {
+        return leaseSize > 0;
+    }
+
+    /**
+     * 判断活动是否在进行中
+     * @return 0：进行中，4：未开始，5：已结束
+     */
+    public int checkWindow(Long voucherId, long now) {
+        long[] window = windows.get(voucherId);
+        if(window == null || window[2] < now) {
+            List<Object> values = stringRedisTemplate.opsForHash()
+                    .multiGet(seckillKeyRouter.windowKey(voucherId, 0), Arrays.asList("begin", "end"));
+            // 活动时间还没有预热到redis，不做判断，也不缓存
+            if(values.get(0) == null && values.get(1) == null) {
+                windows.remove(voucherId);
+                return 0;
+            }
+            window = new long[]{
+                    values.get(0) == null ? Long.MIN_VALUE : Long.parseLong(values.get(0).toString()),
+                    values.get(1) == null ? Long.MAX_VALUE : Long.parseLong(values.get(1).toString()),
+                    now + windowCacheTtl
+            };
+            windows.put(voucherId, window);
+        }
+        if(now < window[0]) {
+            return 4;
+        }
+        return now > window[1] ? 5 : 0;
+    }
+
+    // 本地记录用户购买，已经在本节点购买过返回false
+    public boolean markBuyer(Long voucherId, Long userId) {
+        return buyers.computeIfAbsent(voucherId, id -> ConcurrentHashMap.newKeySet()).add(userId);
+    }
+
+    public void unmarkBuyer(Long voucherId, Long userId) {
+        Set<Long> users = buyers.get(voucherId);
+        if(users != null) {
+            users.remove(userId);
+        }
+    }
+
+    // 本节点是否还有这张优惠券租借的库存，有的话不能因为其他节点售罄而拒绝
+    public boolean hasLease(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        return lease != null && lease.remaining.get() > 0;
+    }
+
+    /**
+     * 从本地租借的库存中扣减一个，本地没有时再去redis租借
+     * @return 扣减的库存所在的分片，-1表示所有分片都没有库存，-2表示有分片的库存还没有写入redis
+     */
+    public int acquire(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        if(lease != null && lease.tryAcquire()) {
+            return lease.shard;
+        }
+        synchronized (lockOf(voucherId)) {
+            // double check，其他线程可能已经租借到新的库存
+            lease = leases.get(voucherId);
+            if(lease != null && lease.tryAcquire()) {
+                return lease.shard;
+            }
+            // 从随机的分片开始租借，分散各个节点的访问
+            int shards = seckillKeyRouter.shardsOf(voucherId);
+            int start = ThreadLocalRandom.current().nextInt(shards);
+            int failure = -1;
+            for (int i = 0; i < shards; i++) {
+                int shard = (start + i) % shards;
+                Long count = stringRedisTemplate.execute(
+                        LEASE_SCRIPT,
+                        Collections.singletonList(seckillKeyRouter.stockKey(voucherId, shard)),
+                        String.valueOf(leaseSize)
+                );
+                if(count != null && count > 0) {
+                    // 借到的库存先扣掉自己这一个
+                    leases.put(voucherId, new Lease(shard, count.intValue() - 1));
+                    return shard;
+                }
+                if(count != null && count < 0) {
+                    failure = -2;
+                }
+            }
+            return failure;
+        }
+    }
+
+    // 归还一个库存，租借的还是同一批时放回本地，否则直接还回redis
+    public void release(Long voucherId, int shard) {
+        synchronized (lockOf(voucherId)) {
+            Lease lease = leases.get(voucherId);
+            if(lease != null && lease.shard == shard) {
+                lease.remaining.incrementAndGet();
+                return;
+            }
+        }
+        giveBack(voucherId, shard, 1);
+    }
+
+    // 活动结束后，归还没有卖完的库存
+    @Scheduled(fixedDelayString = "${hmdp.seckill.preheat-interval:60000}")
+    public void returnExpiredLeases() {
+        long now = System.currentTimeMillis();
+        leases.keySet().stream()
+                .filter(voucherId -> checkWindow(voucherId, now) == 5)
+                .forEach(this::returnLease);
+    }
+
+    // 节点关闭时，归还所有没有卖完的库存
+    @PreDestroy
+    public void returnAllLeases() {
+        leases.keySet().forEach(this::returnLease);
+    }
+
+    private void returnLease(Long voucherId) {
+        Lease lease;
+        synchronized (lockOf(voucherId)) {
+            lease = leases.remove(voucherId);
+        }
+        if(lease == null) {
+            return;
+        }
+        // 取出剩余的库存并清零，并发中的扣减会失败
+        int remaining = lease.remaining.getAndSet(0);
+        if(remaining > 0) {
+            giveBack(voucherId, lease.shard, remaining);
+        }
+        buyers.remove(voucherId);
+        windows.remove(voucherId);
+    }
+
+    private Object lockOf(Long voucherId) {
+        return locks.computeIfAbsent(voucherId, id -> new Object());
+    }
+
+    private void giveBack(Long voucherId, int shard, int count) {
+        stringRedisTemplate.opsForValue().increment(seckillKeyRouter.stockKey(voucherId, shard), count);
+        // 通知各节点库存恢复，取消售罄标记
+        stringRedisTemplate.convertAndSend(SECKILL_RESTOCK_CHANNEL, voucherId.toString());
+        log.debug("归还优惠券{}的库存{}个", voucherId, count);
+    }
+
+    private static class Lease {
+        // 库存租借自哪个分片
+        private final int shard;
+        // 本地剩余的库存
+        private final AtomicInteger remaining;
+
+        private Lease(int shard, int remaining) {
+            this.shard = shard;
+            this.remaining = new AtomicInteger(remaining);
+        }
+
+        private boolean tryAcquire() {
+            while(true) {
+                int current = remaining.get();
+                if(current <= 0) {
+                    return false;
+                }
+                if(remaining.compareAndSet(current, current - 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
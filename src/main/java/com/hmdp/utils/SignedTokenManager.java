@@ -0,0 +1,167 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.UserDTO;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_REVOKED_KEY;
+
+/**
+ * 无状态的签名token
+ * token中保存用户id、昵称、头像和过期时间，用HMAC-SHA256签名，校验签名就能知道当前用户，不用查询redis；
+ * 登出的token放到redis的吊销列表中，只在写请求时检查
+ * token格式：v1.base64url(用户信息).base64url(签名)
+ */
+@Component
+public class SignedTokenManager {
+    private static final String PREFIX = "v1.";
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    // 登录模式，redis：token对应的用户保存在redis中，signed：签名token
+    @Value("${hmdp.login.mode:redis}")
+    private String mode;
+    // 签名密钥，所有节点必须相同
+    @Value("${hmdp.login.signing-key:}")
+    private String signingKey;
+    // 签名token的有效期，单位分钟
+    @Value("${hmdp.login.signed-ttl:120}")
+    private long signedTtl;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    // Mac不是线程安全的，每个线程一个
+    private ThreadLocal<Mac> macs;
+
+    public SignedTokenManager(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    private void init() {
+        if(!isEnabled()) {
+            return;
+        }
+        if(StrUtil.isBlank(signingKey)) {
+            throw new IllegalStateException("hmdp.login.mode为signed时必须配置hmdp.login.signing-key");
+        }
+        SecretKeySpec key = new SecretKeySpec(signingKey.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    public boolean isEnabled() {
+        return "signed".equalsIgnoreCase(mode);
+    }
+
+    public boolean isSignedToken(String token) {
+        return token.startsWith(PREFIX);
+    }
+
+    // 签发token
+    public String issue(UserDTO user) {
+        long expireAt = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(signedTtl);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(user.getId());
+            out.writeLong(expireAt);
+            out.writeUTF(StrUtil.nullToEmpty(user.getNickName()));
+            out.writeUTF(StrUtil.nullToEmpty(user.getIcon()));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        String payload = ENCODER.encodeToString(bytes.toByteArray());
+        return PREFIX + payload + "." + sign(payload);
+    }
+
+    /**
+     * 校验签名和有效期
+     * @return token中的用户，签名错误、已过期或者没有开启签名token时返回null
+     */
+    public UserDTO verify(String token) {
+        int dot = token.lastIndexOf('.');
+        if(!isEnabled() || !isSignedToken(token) || dot <= PREFIX.length()) {
+            return null;
+        }
+        String payload = token.substring(PREFIX.length(), dot);
+        byte[] signature = token.substring(dot + 1).getBytes(StandardCharsets.US_ASCII);
+        // 固定时间比较，防止通过响应时间猜出签名
+        if(!MessageDigest.isEqual(signature, sign(payload).getBytes(StandardCharsets.US_ASCII))) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(DECODER.decode(payload)))) {
+            UserDTO user = new UserDTO();
+            user.setId(in.readLong());
+            long expireAt = in.readLong();
+            if(expireAt < System.currentTimeMillis()) {
+                return null;
+            }
+            user.setNickName(in.readUTF());
+            user.setIcon(in.readUTF());
+            return user;
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // 登出，token在过期之前都在吊销列表中
+    public void revoke(String token) {
+        UserDTO user = verify(token);
+        if(user == null) {
+            return;
+        }
+        long expireAt = expireAtOf(token);
+        long ttl = expireAt - System.currentTimeMillis();
+        if(ttl > 0) {
+            stringRedisTemplate.opsForValue().set(revokedKey(token), "1", ttl, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // 是否已经登出
+    public boolean isRevoked(String token) {
+        return Boolean.TRUE.equals(stringRedisTemplate.hasKey(revokedKey(token)));
+    }
+
+    // 吊销列表中用签名作为token的标识，比整个token短
+    private String revokedKey(String token) {
+        return LOGIN_REVOKED_KEY + token.substring(token.lastIndexOf('.') + 1);
+    }
+
+    private long expireAtOf(String token) {
+        String payload = token.substring(PREFIX.length(), token.lastIndexOf('.'));
+        byte[] bytes = DECODER.decode(payload);
+        long expireAt = 0;
+        for (int i = 8; i < 16; i++) {
+            expireAt = expireAt << 8 | (bytes[i] & 0xFF);
+        }
+        return expireAt;
+    }
+
+    private String sign(String payload) {
+        return ENCODER.encodeToString(macs.get().doFinal(payload.getBytes(StandardCharsets.US_ASCII)));
+    }
+}
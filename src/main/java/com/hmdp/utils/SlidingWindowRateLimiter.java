@@ -0,0 +1,145 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.config.RateLimitProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+import org.springframework.util.AntPathMatcher;
+
+import javax.annotation.PostConstruct;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.RATE_LIMIT_KEY;
+
+/**
+ * 滑动窗口限流
+ * 每个接口按IP和手机号分别计数，计数保存在redis的zset中，所有节点共用；
+ * 规则的key和拦截器一样按Ant风格匹配请求路径，多个规则匹配时使用最精确的，同一个规则匹配的路径共用计数；
+ * 被拒绝的key在本地记住到窗口放开为止，这段时间内的请求直接拒绝，不访问redis；
+ * 另外按IP在本地做每秒的粗略计数，明显的刷接口请求不访问redis
+ */
+@Slf4j
+@Component
+public class SlidingWindowRateLimiter {
+    private static final DefaultRedisScript<Long> RATE_LIMIT_SCRIPT;
+    static {
+        RATE_LIMIT_SCRIPT = new DefaultRedisScript<>();
+        RATE_LIMIT_SCRIPT.setLocation(new ClassPathResource("rate_limit.lua"));
+        RATE_LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RateLimitProperties properties;
+    private final AntPathMatcher pathMatcher = new AntPathMatcher();
+
+    // 被拒绝的key和放开的时间戳
+    private final Cache<String, Long> blocked = Caffeine.newBuilder()
+            .maximumSize(100_000)
+            .expireAfterWrite(1, TimeUnit.HOURS)
+            .build();
+    // 每个IP最近一秒在本节点的请求次数
+    private final Cache<String, AtomicInteger> localCounts = Caffeine.newBuilder()
+            .maximumSize(100_000)
+            .expireAfterWrite(1, TimeUnit.SECONDS)
+            .build();
+
+    public SlidingWindowRateLimiter(StringRedisTemplate stringRedisTemplate, RateLimitProperties properties) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.properties = properties;
+    }
+
+    @PostConstruct
+    private void init() {
+        if(isEnabled() && StrUtil.isBlank(properties.getIpHeader())) {
+            log.warn("限流没有配置hmdp.rate-limit.ip-header，按连接的地址限流，部署在代理后面时所有请求共用代理的地址");
+        }
+    }
+
+    public boolean isEnabled() {
+        return properties.isEnabled();
+    }
+
+    // 本地预过滤，IP最近一秒的请求次数超过localIpQps时返回false
+    public boolean allowLocally(String ip) {
+        int qps = properties.getLocalIpQps();
+        if(qps <= 0) {
+            return true;
+        }
+        return localCounts.get(ip, k -> new AtomicInteger()).incrementAndGet() <= qps;
+    }
+
+    /**
+     * 按IP限流
+     * @return 0：放行，大于0：被拒绝，还要等待的毫秒数
+     */
+    public long acquireByIp(String path, String ip) {
+        Map.Entry<String, RateLimitProperties.Rule> rule = ruleOf(path);
+        if(!isEnabled() || rule == null || rule.getValue().getIpLimit() <= 0) {
+            return 0;
+        }
+        return acquire(rule.getKey() + ":ip:" + ip, rule.getValue().getIpLimit(), rule.getValue().getIpWindow());
+    }
+
+    /**
+     * 按手机号限流
+     * @return 0：放行，大于0：被拒绝，还要等待的毫秒数
+     */
+    public long acquireByPhone(String path, String phone) {
+        Map.Entry<String, RateLimitProperties.Rule> rule = ruleOf(path);
+        if(!isEnabled() || rule == null || rule.getValue().getPhoneLimit() <= 0) {
+            return 0;
+        }
+        return acquire(rule.getKey() + ":phone:" + phone, rule.getValue().getPhoneLimit(), rule.getValue().getPhoneWindow());
+    }
+
+    // 请求路径匹配的规则，key是规则的路径，没有匹配的规则返回null
+    private Map.Entry<String, RateLimitProperties.Rule> ruleOf(String path) {
+        Map<String, RateLimitProperties.Rule> rules = properties.getRules();
+        RateLimitProperties.Rule exact = rules.get(path);
+        if(exact != null) {
+            return new AbstractMap.SimpleImmutableEntry<>(path, exact);
+        }
+        Comparator<String> specificity = pathMatcher.getPatternComparator(path);
+        return rules.entrySet().stream()
+                .filter(entry -> pathMatcher.match(entry.getKey(), path))
+                .min((a, b) -> specificity.compare(a.getKey(), b.getKey()))
+                .orElse(null);
+    }
+
+    private long acquire(String id, int limit, long windowSeconds) {
+        long now = System.currentTimeMillis();
+        // 本地记住的拒绝还没到期，直接拒绝
+        Long until = blocked.getIfPresent(id);
+        if(until != null) {
+            if(until > now) {
+                return until - now;
+            }
+            blocked.invalidate(id);
+        }
+        Long wait = stringRedisTemplate.execute(
+                RATE_LIMIT_SCRIPT,
+                Collections.singletonList(RATE_LIMIT_KEY + id),
+                String.valueOf(now),
+                String.valueOf(TimeUnit.SECONDS.toMillis(windowSeconds)),
+                String.valueOf(limit),
+                now + "-" + ThreadLocalRandom.current().nextLong()
+        );
+        if(wait != null && wait > 0) {
+            blocked.put(id, now + wait);
+            log.debug("{}请求太频繁，{}ms后放开", id, wait);
+            return wait;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,70 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * UserDTO和redis中登录用户hash的转换
+ * 字段固定为id、nickName、icon，直接读写字节，不用反射，和BeanUtil.beanToMap写入的hash格式相同
+ */
+public final class UserDTOCodec {
+    private static final byte[] ID = "id".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NICK_NAME = "nickName".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ICON = "icon".getBytes(StandardCharsets.UTF_8);
+
+    private UserDTOCodec() {
+    }
+
+    // 转换为hash，值为null的字段不写入
+    public static Map<byte[], byte[]> encode(UserDTO user) {
+        Map<byte[], byte[]> hash = new LinkedHashMap<>(4);
+        if(user.getId() != null) {
+            hash.put(ID, Long.toString(user.getId()).getBytes(StandardCharsets.US_ASCII));
+        }
+        if(user.getNickName() != null) {
+            hash.put(NICK_NAME, user.getNickName().getBytes(StandardCharsets.UTF_8));
+        }
+        if(user.getIcon() != null) {
+            hash.put(ICON, user.getIcon().getBytes(StandardCharsets.UTF_8));
+        }
+        return hash;
+    }
+
+    // 从hash中读取，不认识的字段忽略
+    public static UserDTO decode(Map<byte[], byte[]> hash) {
+        UserDTO user = new UserDTO();
+        for (Map.Entry<byte[], byte[]> entry : hash.entrySet()) {
+            byte[] field = entry.getKey();
+            byte[] value = entry.getValue();
+            if(Arrays.equals(field, ID)) {
+                user.setId(parseLong(value));
+            } else if(Arrays.equals(field, NICK_NAME)) {
+                user.setNickName(new String(value, StandardCharsets.UTF_8));
+            } else if(Arrays.equals(field, ICON)) {
+                user.setIcon(new String(value, StandardCharsets.UTF_8));
+            }
+        }
+        return user;
+    }
+
+    // 直接解析十进制字节，不创建字符串
+    private static long parseLong(byte[] value) {
+        if(value.length == 0) {
+            throw new NumberFormatException("empty id");
+        }
+        boolean negative = value[0] == '-';
+        long result = 0;
+        for (int i = negative ? 1 : 0; i < value.length; i++) {
+            int digit = value[i] - '0';
+            if(digit < 0 || digit > 9) {
+                throw new NumberFormatException(new String(value, StandardCharsets.US_ASCII));
+            }
+            result = result * 10 + digit;
+        }
+        return negative ? -result : result;
+    }
+}
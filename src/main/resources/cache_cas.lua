@@ -0,0 +1,37 @@
+-- 带版本号写入缓存，redis中已有更新的版本时不覆盖，防止旧数据覆盖新数据
+-- 缓存值的第一个字节是版本标记V，后面8个字节是大端序的版本号，空字符串表示数据库中不存在，不带版本号
+-- 逻辑过期的缓存在版本号后面是8个字节的逻辑过期时间，脚本只比较版本号
+-- 没有版本标记的值是升级之前写入的旧格式，不能当作版本号比较，直接覆盖
+-- KEYS
+-- 1.缓存的key
+local key = KEYS[1]
+-- 参数
+-- 1.要写入的版本号
+-- 2.要写入的缓存值
+-- 3.有效期，单位毫秒，0表示不过期
+local version = tonumber(ARGV[1])
+local value = ARGV[2]
+local ttl = tonumber(ARGV[3])
+
+local current = redis.call("getrange", key, 0, 8)
+-- 86是版本标记V的ASCII码
+if(#current == 9 and string.byte(current, 1) == 86) then
+    if(value == "") then
+        -- redis中已有带版本号的数据，空值不覆盖
+        return 0
+    end
+    local current_version = 0
+    for i = 2, 9 do
+        current_version = current_version * 256 + string.byte(current, i)
+    end
+    if(current_version > version) then
+        -- redis中的版本更新，不写入
+        return 0
+    end
+end
+if(ttl > 0) then
+    redis.call("set", key, value, "px", ttl)
+else
+    redis.call("set", key, value)
+end
+return 1
@@ -0,0 +1,25 @@
+-- 滑动窗口限流，窗口内的每次请求是zset中的一个元素，分数是请求的时间
+-- KEYS
+-- 1.计数的key
+local key = KEYS[1]
+-- 参数
+-- 1.当前时间戳，毫秒
+local now = tonumber(ARGV[1])
+-- 2.窗口长度，毫秒
+local window = tonumber(ARGV[2])
+-- 3.窗口内允许的请求次数
+local limit = tonumber(ARGV[3])
+-- 4.本次请求的唯一标识
+local member = ARGV[4]
+
+-- 删除窗口之外的请求
+redis.call("zremrangebyscore", key, 0, now - window)
+if(redis.call("zcard", key) >= limit) then
+    -- 超过限制，返回最早的请求移出窗口还要等待的毫秒数
+    local oldest = redis.call("zrange", key, 0, 0, "withscores")
+    return math.max(1, tonumber(oldest[2]) + window - now)
+end
+-- 记录本次请求
+redis.call("zadd", key, now, member)
+redis.call("pexpire", key, window)
+return 0
@@ -1,28 +1,80 @@
+-- 在用户所属的库存分片上执行，分片的库存、购买用户和消息队列使用同一个hash tag
+-- KEYS
+-- 1.分片库存的key
+local voucher_stock_key = KEYS[1]
+-- 2.分片购买用户的key，set或者bitmap
+local order_key = KEYS[2]
+-- 3.分片订单消息队列的key
+local stream_key = KEYS[3]
+-- 4.分片活动时间的key，hash中保存开始和结束的时间戳
+local window_key = KEYS[4]
 -- 参数
 -- 1.优惠券id:voucher_id
 local voucher_id = ARGV[1]
 -- 2.用户id:user_id
 local user_id = ARGV[2]
+-- 3.订单id:order_id
+local order_id = ARGV[3]
+-- 4.本分片没有库存时，是否先占住一人一单的资格，再去其他分片扣库存
+local reserve = ARGV[4]
+-- 5.购买用户的记录方式：set或者bitmap
+local buyer_type = ARGV[5]
+-- 6.用户在购买记录中的成员，set中是用户id，bitmap中是bit的偏移量
+local buyer = ARGV[6]
+-- 7.当前时间戳，毫秒
+local now = tonumber(ARGV[7])
 
---redis中优惠券库存的key
-local voucher_stock_key = "seckill:stock:" .. voucher_id
--- redis中订单的key
-local order_key = "seckill:order:" .. voucher_id
+-- 判断用户是否在购买记录中
+local function is_buyer()
+    if(buyer_type == "bitmap") then
+        return redis.call("getbit", order_key, buyer) == 1
+    end
+    return redis.call("sismember", order_key, buyer) == 1
+end
+-- 把用户加入购买记录
+local function add_buyer()
+    if(buyer_type == "bitmap") then
+        redis.call("setbit", order_key, buyer, 1)
+    else
+        redis.call("sadd", order_key, buyer)
+    end
+end
 
--- 根据优惠券库存判断库存是否充足
-if(tonumber(redis.call("get", voucher_stock_key) <= 0 ) then
-    -- 库存不足，返回1
-    return 1
+-- 判断活动是否在进行中，没有预热活动时间的优惠券不做判断
+local window = redis.call("hmget", window_key, "begin", "end")
+if(window[1] and now < tonumber(window[1])) then
+    -- 活动还未开始，返回4
+    return 4
+end
+if(window[2] and now > tonumber(window[2])) then
+    -- 活动已经结束，返回5
+    return 5
 end
--- 库存充足
 -- 判断该用户是否购买过
-if(redis.call("sismember", order_key, user_id) == 1) then
+if(is_buyer()) then
     -- 购买过，返回2
     return 2
 end
--- 没购买过
+-- 库存还没有写入redis（未预热、redis数据丢失），不是售罄，返回6
+local stock = redis.call("get", voucher_stock_key)
+if(not stock) then
+    return 6
+end
+-- 根据优惠券库存判断库存是否充足
+if(tonumber(stock) <= 0) then
+    if(reserve == "1") then
+        -- 记录用户，其他分片也没有库存时再移除，返回3
+        add_buyer()
+        return 3
+    end
+    -- 库存不足，返回1
+    return 1
+end
+-- 库存充足，没购买过
 -- 库存减1
 redis.call("incrby", voucher_stock_key, -1)
--- 把购买过的用户id存入订单
-redis.call("sadd", order_key, user_id)
-return 0
\ No newline at end of file
+-- 把购买过的用户存入购买记录
+add_buyer()
+-- 把订单写入消息队列，和扣库存在同一个脚本中，保证被扣减的库存一定有对应的订单 XADD stream.orders * k1 v1 k2 v2 ...
+redis.call("xadd", stream_key, "*", "userId", user_id, "voucherId", voucher_id, "id", order_id)
+return 0
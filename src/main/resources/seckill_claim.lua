@@ -0,0 +1,31 @@
+-- 库存已经从节点本地扣减，这里只判断一人一单并写入订单消息队列
+-- KEYS
+-- 1.分片购买用户的key，set或者bitmap
+local order_key = KEYS[1]
+-- 2.分片订单消息队列的key
+local stream_key = KEYS[2]
+-- 参数
+-- 1.优惠券id:voucher_id
+local voucher_id = ARGV[1]
+-- 2.用户id:user_id
+local user_id = ARGV[2]
+-- 3.订单id:order_id
+local order_id = ARGV[3]
+-- 4.购买用户的记录方式：set或者bitmap
+local buyer_type = ARGV[4]
+-- 5.用户在购买记录中的成员，set中是用户id，bitmap中是bit的偏移量
+local buyer = ARGV[5]
+
+-- 判断该用户是否购买过，没有购买过则加入购买记录
+if(buyer_type == "bitmap") then
+    if(redis.call("setbit", order_key, buyer, 1) == 1) then
+        -- 购买过，返回2
+        return 2
+    end
+elseif(redis.call("sadd", order_key, buyer) == 0) then
+    -- 购买过，返回2
+    return 2
+end
+-- 把订单写入消息队列
+redis.call("xadd", stream_key, "*", "userId", user_id, "voucherId", voucher_id, "id", order_id)
+return 0
@@ -0,0 +1,22 @@
+-- 从分片库存中租借一批库存到节点本地，库存不足一批时有多少借多少
+-- KEYS
+-- 1.分片库存的key
+local voucher_stock_key = KEYS[1]
+-- 参数
+-- 1.每次租借的数量
+local count = tonumber(ARGV[1])
+
+local value = redis.call("get", voucher_stock_key)
+if(not value) then
+    -- 库存还没有写入redis，不是售罄，返回-1
+    return -1
+end
+local stock = tonumber(value)
+if(stock <= 0) then
+    -- 库存不足，返回0
+    return 0
+end
+local lease = math.min(stock, count)
+redis.call("decrby", voucher_stock_key, lease)
+-- 返回借到的数量
+return lease
@@ -0,0 +1,29 @@
+-- 用户所属分片没有库存时，到其他分片扣库存，一人一单已经在所属分片上判断过
+-- KEYS
+-- 1.分片库存的key
+local voucher_stock_key = KEYS[1]
+-- 2.分片订单消息队列的key
+local stream_key = KEYS[2]
+-- 参数
+-- 1.优惠券id:voucher_id
+local voucher_id = ARGV[1]
+-- 2.用户id:user_id
+local user_id = ARGV[2]
+-- 3.订单id:order_id
+local order_id = ARGV[3]
+
+-- 库存还没有写入redis，不是售罄，返回6
+local stock = redis.call("get", voucher_stock_key)
+if(not stock) then
+    return 6
+end
+-- 根据优惠券库存判断库存是否充足
+if(tonumber(stock) <= 0) then
+    -- 库存不足，返回1
+    return 1
+end
+-- 库存减1
+redis.call("incrby", voucher_stock_key, -1)
+-- 把订单写入消息队列
+redis.call("xadd", stream_key, "*", "userId", user_id, "voucherId", voucher_id, "id", order_id)
+return 0
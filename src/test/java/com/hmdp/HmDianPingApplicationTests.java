@@ -1,18 +1,60 @@
 package com.hmdp;
 
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Shop;
 import com.hmdp.service.impl.ShopServiceImpl;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.LoginSessionCache;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.RefreshTokenInterceptor;
+import com.hmdp.utils.SeckillKeyRouter;
+import com.hmdp.utils.SignedTokenManager;
+import com.hmdp.utils.UserDTOCodec;
 // import jdk.vm.ci.meta.Local;
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TTL;
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_TTL;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SpringBootTest
 class HmDianPingApplicationTests {
     @Resource
     private ShopServiceImpl shopService;
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private LoginSessionCache loginSessionCache;
+
+    @Resource
+    private CacheClient cacheClient;
+
     @Test
     void testSaveShop() throws InterruptedException {
         // shopService.saveShopToRedis(1L, 10L);
@@ -22,4 +64,228 @@ class HmDianPingApplicationTests {
     void getTime() {
         System.out.println(System.currentTimeMillis());
     }
+
+    // 升级之前写入的没有版本标记的商户缓存，重新查询数据库后被带版本号的值覆盖，不会一直被脚本拒绝，需要本地redis
+    @Test
+    void testCacheRefillReplacesLegacyValue() {
+        long id = Long.MAX_VALUE - 1;
+        String key = CACHE_SHOP_KEY + id;
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        Shop shop = new Shop().setId(id).setName("103茶餐厅").setVersion(1L);
+        Function<Long, Shop> db = shopId -> shop;
+        Function<Long, Shop> noDb = shopId -> {
+            throw new AssertionError("缓存已经覆盖，不应再查询数据库");
+        };
+        try {
+            // 旧格式：JSON，设置过期时间
+            byte[] json = new JsonCacheCodec().encode(new Shop().setId(id).setName("旧数据"));
+            stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                    connection.pSetEx(rawKey, TimeUnit.MINUTES.toMillis(30), json));
+            assertEquals(shop, cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, db, CACHE_SHOP_TTL, TimeUnit.MINUTES));
+            assertEquals('V', rawValue(rawKey)[0]);
+            assertEquals(shop, cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, noDb, CACHE_SHOP_TTL, TimeUnit.MINUTES));
+
+            // 旧的逻辑过期格式：8个字节的逻辑过期时间加JSON，不过期
+            byte[] logical = ByteBuffer.allocate(8 + json.length)
+                    .putLong(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(30)).put(json).array();
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.set(rawKey, logical));
+            assertEquals(shop, cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, db, CACHE_SHOP_TTL, TimeUnit.MINUTES));
+            assertEquals('V', rawValue(rawKey)[0]);
+            assertEquals(shop, cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, noDb, CACHE_SHOP_TTL, TimeUnit.MINUTES));
+        } finally {
+            cacheClient.delete(key);
+        }
+    }
+
+    private byte[] rawValue(byte[] rawKey) {
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+    }
+
+    // 每个id访问一次redis和号段模式下，多线程生成的id都不重复，同一个线程内递增，需要本地redis
+    @Test
+    void testIdWorker() throws InterruptedException {
+        RedisIdWorker increment = new RedisIdWorker(stringRedisTemplate, 0);
+        try {
+            checkIdWorker("逐个自增", increment, 10, 100);
+        } finally {
+            increment.shutdown();
+        }
+        RedisIdWorker segment = new RedisIdWorker(stringRedisTemplate, 100);
+        try {
+            checkIdWorker("号段模式", segment, 10, 100);
+        } finally {
+            segment.shutdown();
+        }
+    }
+
+    // 对比每个id访问一次redis和号段模式每秒生成的id数量，需要本地redis，默认不运行，mvn test -Pbenchmark
+    @Test
+    @Tag("benchmark")
+    void testIdWorkerThroughput() throws InterruptedException {
+        int threads = 100;
+        int idsPerThread = 1000;
+        RedisIdWorker increment = new RedisIdWorker(stringRedisTemplate, 0);
+        try {
+            long cost = checkIdWorker("逐个自增", increment, threads, idsPerThread);
+            System.out.println("逐个自增：" + threads * idsPerThread * 1000L / Math.max(cost, 1) + "个id/秒");
+        } finally {
+            increment.shutdown();
+        }
+        RedisIdWorker segment = new RedisIdWorker(stringRedisTemplate, 1000);
+        try {
+            long cost = checkIdWorker("号段模式", segment, threads, idsPerThread);
+            System.out.println("号段模式：" + threads * idsPerThread * 1000L / Math.max(cost, 1) + "个id/秒");
+        } finally {
+            segment.shutdown();
+        }
+    }
+
+    // 多线程生成id，检查不重复、同一个线程内递增，返回耗时毫秒数
+    private long checkIdWorker(String name, RedisIdWorker idWorker, int threads, int idsPerThread) throws InterruptedException {
+        long[][] ids = new long[threads][idsPerThread];
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        CountDownLatch latch = new CountDownLatch(threads);
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < threads; i++) {
+            long[] threadIds = ids[i];
+            es.submit(() -> {
+                try {
+                    for (int j = 0; j < idsPerThread; j++) {
+                        threadIds[j] = idWorker.nextId("test");
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(60, TimeUnit.SECONDS));
+        long cost = System.currentTimeMillis() - begin;
+        es.shutdown();
+        Set<Long> unique = new HashSet<>(threads * idsPerThread);
+        for (long[] threadIds : ids) {
+            for (int j = 0; j < idsPerThread; j++) {
+                assertTrue(unique.add(threadIds[j]), name + "生成了重复的id：" + threadIds[j]);
+                if(j > 0) {
+                    assertTrue(threadIds[j] > threadIds[j - 1], name + "生成的id没有递增");
+                }
+            }
+        }
+        return cost;
+    }
+
+    // 对比set和分块bitmap记录购买用户的内存占用，使用SeckillKeyRouter实际的key布局，需要本地redis，数据量大时耗时较长
+    @Test
+    @Tag("benchmark")
+    void testBuyerMemory() {
+        Long voucherId = 1L;
+        SeckillKeyRouter setRouter = new SeckillKeyRouter(stringRedisTemplate);
+        ReflectionTestUtils.setField(setRouter, "slots", 1);
+        SeckillKeyRouter bitmapRouter = new SeckillKeyRouter(stringRedisTemplate);
+        ReflectionTestUtils.setField(bitmapRouter, "slots", 1);
+        ReflectionTestUtils.setField(bitmapRouter, "buyerBitmap", true);
+        // 5000万用户时set需要几个G的内存，redis的maxmemory要足够大
+        int[] buyerCounts = {1_000_000, 10_000_000, 50_000_000};
+        for (int count : buyerCounts) {
+            // 用户id连续，bitmap每块2^20位
+            Set<String> keys = new LinkedHashSet<>();
+            String setKey = setRouter.orderKey(voucherId, 0, 1L);
+            keys.add(setKey);
+            int batch = 10000;
+            for (int begin = 1; begin <= count; begin += batch) {
+                int from = begin;
+                int to = Math.min(begin + batch - 1, count);
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (long userId = from; userId <= to; userId++) {
+                        connection.setCommands().sAdd(setKey.getBytes(StandardCharsets.UTF_8),
+                                setRouter.buyerMember(userId).getBytes(StandardCharsets.UTF_8));
+                        String chunkKey = bitmapRouter.orderKey(voucherId, 0, userId);
+                        keys.add(chunkKey);
+                        connection.stringCommands().setBit(chunkKey.getBytes(StandardCharsets.UTF_8),
+                                Long.parseLong(bitmapRouter.buyerMember(userId)), true);
+                    }
+                    return null;
+                });
+            }
+            try {
+                long setBytes = memoryUsage(setKey);
+                long bitmapBytes = 0;
+                int chunks = 0;
+                for (String key : keys) {
+                    if(!key.equals(setKey)) {
+                        bitmapBytes += memoryUsage(key);
+                        chunks++;
+                    }
+                }
+                System.out.println(count + "个用户，set占用" + setBytes + "字节，bitmap" + chunks + "块占用" + bitmapBytes + "字节");
+                // 每块最多2^20位，加上key本身的开销
+                assertEquals((count >>> 20) + 1, chunks);
+                assertTrue(bitmapBytes <= chunks * ((1L << 20) / 8 + 1024));
+                assertTrue(bitmapBytes < setBytes);
+            } finally {
+                stringRedisTemplate.delete(keys);
+            }
+        }
+    }
+
+    // 对比redis登录和签名token两种模式下RefreshTokenInterceptor的开销，需要本地redis，默认不运行，mvn test -Pbenchmark
+    // 签名token的校验、篡改、过期和吊销见SignedTokenManagerTest
+    @Test
+    @Tag("benchmark")
+    void testLoginInterceptor() throws Exception {
+        UserDTO user = new UserDTO();
+        user.setId(1L);
+        user.setNickName("小鱼同学");
+        user.setIcon("/imgs/blogs/blog1.jpg");
+        // redis模式，用户信息保存在redis的hash中
+        String redisToken = UUID.randomUUID().toString();
+        byte[] rawKey = (LOGIN_USER_KEY + redisToken).getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.hMSet(rawKey, UserDTOCodec.encode(user));
+            return connection.expire(rawKey, TimeUnit.MINUTES.toSeconds(LOGIN_USER_TTL));
+        });
+        SignedTokenManager redisMode = new SignedTokenManager(stringRedisTemplate);
+        ReflectionTestUtils.setField(redisMode, "mode", "redis");
+        // signed模式
+        SignedTokenManager signedMode = new SignedTokenManager(stringRedisTemplate);
+        ReflectionTestUtils.setField(signedMode, "mode", "signed");
+        ReflectionTestUtils.setField(signedMode, "signingKey", "benchmark-signing-key");
+        ReflectionTestUtils.setField(signedMode, "signedTtl", 120L);
+        ReflectionTestUtils.invokeMethod(signedMode, "init");
+        String signedToken = signedMode.issue(user);
+
+        // 两种模式都能解析出登录用户
+        assertEquals(user, loginSessionCache.resolve(redisToken));
+        assertEquals(user, signedMode.verify(signedToken));
+        interceptorThroughput("redis GET", new RefreshTokenInterceptor(loginSessionCache, redisMode), redisToken, "GET");
+        interceptorThroughput("signed GET", new RefreshTokenInterceptor(loginSessionCache, signedMode), signedToken, "GET");
+        interceptorThroughput("signed POST", new RefreshTokenInterceptor(loginSessionCache, signedMode), signedToken, "POST");
+        stringRedisTemplate.delete(LOGIN_USER_KEY + redisToken);
+    }
+
+    private void interceptorThroughput(String name, RefreshTokenInterceptor interceptor, String token, String method) throws Exception {
+        int iterations = 20_000;
+        MockHttpServletRequest request = new MockHttpServletRequest(method, "/user/me");
+        request.addHeader("authorization", token);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        // 预热
+        for (int i = 0; i < iterations; i++) {
+            interceptor.preHandle(request, response, null);
+            interceptor.postHandle(request, response, null, null);
+        }
+        long begin = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            interceptor.preHandle(request, response, null);
+            interceptor.postHandle(request, response, null, null);
+        }
+        long cost = System.nanoTime() - begin;
+        System.out.println(name + "：" + iterations * 1_000_000_000L / cost + "次/秒，平均"
+                + cost / iterations + "ns");
+    }
+
+    private Long memoryUsage(String key) {
+        // MEMORY USAGE key SAMPLES 0，统计集合的全部元素
+        return stringRedisTemplate.execute((RedisCallback<Long>) connection -> (Long) connection.execute(
+                "MEMORY", "USAGE".getBytes(StandardCharsets.UTF_8), key.getBytes(StandardCharsets.UTF_8),
+                "SAMPLES".getBytes(StandardCharsets.UTF_8), "0".getBytes(StandardCharsets.UTF_8)));
+    }
 }
@@ -0,0 +1,116 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// 缓存编码的单元测试，不启动spring容器，不需要redis
+class CacheCodecTest {
+    // JSON只保留到毫秒，数据库中的时间也只到秒，测试数据用整秒
+    private static final LocalDateTime TIME = LocalDateTime.of(2021, 12, 22, 10, 30, 0);
+
+    private static Shop shop() {
+        return new Shop()
+                .setId(1L).setName("103茶餐厅").setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关").setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192).setY(30.316078)
+                .setAvgPrice(80L).setSold(4215).setComments(3035).setScore(37).setOpenHours("10:00-22:00")
+                .setCreateTime(TIME).setUpdateTime(TIME).setVersion(3L);
+    }
+
+    private static ShopType shopType() {
+        return new ShopType()
+                .setId(1L).setName("美食").setIcon("/types/ms.png").setSort(1)
+                .setCreateTime(TIME).setUpdateTime(TIME);
+    }
+
+    private static Map<String, CacheCodec> codecs() {
+        Map<String, CacheCodec> codecs = new LinkedHashMap<>();
+        codecs.put("json", new JsonCacheCodec());
+        codecs.put("kryo", new KryoCacheCodec());
+        codecs.put("json+deflate", new CompressingCacheCodec(new JsonCacheCodec(), 64));
+        codecs.put("kryo+deflate", new CompressingCacheCodec(new KryoCacheCodec(), 64));
+        return codecs;
+    }
+
+    // 每种编码解码后都和原对象相等
+    @Test
+    void testRoundTrip() {
+        Shop shop = shop();
+        ShopType shopType = shopType();
+        codecs().forEach((name, codec) -> {
+            assertEquals(shop, codec.decode(codec.encode(shop), Shop.class), name);
+            assertEquals(shopType, codec.decode(codec.encode(shopType), ShopType.class), name);
+        });
+    }
+
+    // 超过阈值的数据确实被压缩，没超过的原样保存
+    @Test
+    void testCompressThreshold() {
+        // 多张图片的商户，图片地址有大量重复内容，压缩后能变小
+        Shop shop = shop();
+        shop.setImages(String.join(",", Collections.nCopies(5, shop.getImages())));
+        CacheCodec kryo = new KryoCacheCodec();
+        byte[] plain = kryo.encode(shop);
+        byte[] compressed = new CompressingCacheCodec(kryo, 64).encode(shop);
+        assertTrue(compressed.length < plain.length);
+        assertEquals(shop, new CompressingCacheCodec(kryo, 64).decode(compressed, Shop.class));
+        byte[] uncompressed = new CompressingCacheCodec(kryo, plain.length).encode(shop);
+        assertEquals(plain.length, uncompressed.length);
+        assertEquals(shop, new CompressingCacheCodec(kryo, plain.length).decode(uncompressed, Shop.class));
+    }
+
+    // 切换到kryo之后能读出之前json写入的缓存，切换到压缩之后能读出之前没压缩的缓存
+    @Test
+    void testReadOldFormat() {
+        Shop shop = shop();
+        byte[] json = new JsonCacheCodec().encode(shop);
+        assertEquals(shop, new KryoCacheCodec().decode(json, Shop.class));
+        byte[] kryo = new KryoCacheCodec().encode(shop);
+        assertEquals(shop, new CompressingCacheCodec(new KryoCacheCodec(), 64).decode(kryo, Shop.class));
+    }
+
+    // 对比各种缓存编码的编解码速度和占用字节数，默认不运行，mvn test -Pbenchmark
+    @Test
+    @Tag("benchmark")
+    void testCacheCodecThroughput() {
+        Shop shop = shop();
+        ShopType shopType = shopType();
+        codecs().forEach((name, codec) -> {
+            codecThroughput(name, codec, shop, Shop.class);
+            codecThroughput(name, codec, shopType, ShopType.class);
+        });
+    }
+
+    private <T> void codecThroughput(String name, CacheCodec codec, T value, Class<T> type) {
+        int iterations = 200_000;
+        byte[] bytes = codec.encode(value);
+        // 预热
+        for (int i = 0; i < iterations; i++) {
+            codec.decode(codec.encode(value), type);
+        }
+        long begin = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            bytes = codec.encode(value);
+        }
+        long encodeCost = System.nanoTime() - begin;
+        begin = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            codec.decode(bytes, type);
+        }
+        long decodeCost = System.nanoTime() - begin;
+        System.out.println(name + " " + type.getSimpleName() + "：" + bytes.length + "字节，编码"
+                + iterations * 1_000_000_000L / encodeCost + "次/秒，解码"
+                + iterations * 1_000_000_000L / decodeCost + "次/秒");
+    }
+}
@@ -0,0 +1,154 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.service.impl.UserServiceImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_REVOKED_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+// 签名token的单元测试，redis用mock代替
+class SignedTokenManagerTest {
+    private final StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+
+    @AfterEach
+    void tearDown() {
+        UserHolder.removeUser();
+    }
+
+    private SignedTokenManager manager(String signingKey, long signedTtl) {
+        SignedTokenManager manager = new SignedTokenManager(stringRedisTemplate);
+        ReflectionTestUtils.setField(manager, "mode", "signed");
+        ReflectionTestUtils.setField(manager, "signingKey", signingKey);
+        ReflectionTestUtils.setField(manager, "signedTtl", signedTtl);
+        ReflectionTestUtils.invokeMethod(manager, "init");
+        return manager;
+    }
+
+    private static UserDTO user() {
+        UserDTO user = new UserDTO();
+        user.setId(1010L);
+        user.setNickName("小鱼同学");
+        user.setIcon("/imgs/blogs/blog1.jpg");
+        return user;
+    }
+
+    // 签发的token校验后得到相同的用户
+    @Test
+    void testRoundTrip() {
+        SignedTokenManager manager = manager("test-signing-key", 120);
+        String token = manager.issue(user());
+        assertTrue(manager.isSignedToken(token));
+        assertEquals(user(), manager.verify(token));
+    }
+
+    // 修改用户信息或签名、用其他密钥签名的token都校验失败
+    @Test
+    void testTamperedToken() {
+        SignedTokenManager manager = manager("test-signing-key", 120);
+        String token = manager.issue(user());
+        int dot = token.lastIndexOf('.');
+        // 把用户id改成1011，签名不变
+        byte[] payload = Base64.getUrlDecoder().decode(token.substring(3, dot));
+        payload[7]++;
+        String forged = "v1." + Base64.getUrlEncoder().withoutPadding().encodeToString(payload) + token.substring(dot);
+        assertNull(manager.verify(forged));
+        // 修改签名
+        char last = token.charAt(token.length() - 1);
+        assertNull(manager.verify(token.substring(0, token.length() - 1) + (last == 'A' ? 'B' : 'A')));
+        // 其他密钥签名
+        assertNull(manager.verify(manager("other-signing-key", 120).issue(user())));
+        // 格式错误
+        assertNull(manager.verify("v1.abc"));
+        assertNull(manager.verify("v1.!!!." + token.substring(dot + 1)));
+    }
+
+    // 过期的token校验失败
+    @Test
+    void testExpiredToken() {
+        SignedTokenManager manager = manager("test-signing-key", -1);
+        assertNull(manager.verify(manager.issue(user())));
+    }
+
+    // 登出的token按剩余有效期放入吊销列表
+    @Test
+    @SuppressWarnings("unchecked")
+    void testRevoke() {
+        ValueOperations<String, String> ops = mock(ValueOperations.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(ops);
+        SignedTokenManager manager = manager("test-signing-key", 120);
+        String token = manager.issue(user());
+        manager.revoke(token);
+        String signature = token.substring(token.lastIndexOf('.') + 1);
+        verify(ops).set(eq(LOGIN_REVOKED_KEY + signature), eq("1"), anyLong(), eq(TimeUnit.MILLISECONDS));
+        // 无效的token不写入
+        manager.revoke("v1.abc.def");
+        verify(ops, never()).set(startsWith(LOGIN_REVOKED_KEY + "def"), eq("1"), anyLong(), eq(TimeUnit.MILLISECONDS));
+    }
+
+    // redis模式下没有签名密钥，签名格式的token校验失败，登出时不访问吊销列表
+    @Test
+    void testRedisMode() {
+        String token = manager("test-signing-key", 120).issue(user());
+        SignedTokenManager redisMode = new SignedTokenManager(stringRedisTemplate);
+        ReflectionTestUtils.setField(redisMode, "mode", "redis");
+        ReflectionTestUtils.invokeMethod(redisMode, "init");
+        assertNull(redisMode.verify(token));
+        redisMode.revoke(token);
+        verify(stringRedisTemplate, never()).opsForValue();
+
+        // 登出按redis模式的token删除
+        LoginSessionCache loginSessionCache = mock(LoginSessionCache.class);
+        UserServiceImpl userService = new UserServiceImpl();
+        ReflectionTestUtils.setField(userService, "signedTokenManager", redisMode);
+        ReflectionTestUtils.setField(userService, "loginSessionCache", loginSessionCache);
+        assertTrue(userService.logout(token).getSuccess());
+        verify(loginSessionCache).revoke(token);
+    }
+
+    // 登出的token在写请求中被拒绝，读请求不查询吊销列表
+    @Test
+    void testRevokedTokenRefusedOnWrite() throws Exception {
+        SignedTokenManager manager = manager("test-signing-key", 120);
+        String token = manager.issue(user());
+        UserDTO other = user();
+        other.setId(1011L);
+        String otherToken = manager.issue(other);
+        when(stringRedisTemplate.hasKey(LOGIN_REVOKED_KEY + token.substring(token.lastIndexOf('.') + 1))).thenReturn(true);
+        RefreshTokenInterceptor interceptor = new RefreshTokenInterceptor(null, manager);
+
+        assertNull(currentUser(interceptor, "POST", token));
+        assertEquals(user(), currentUser(interceptor, "GET", token));
+        assertEquals(other, currentUser(interceptor, "POST", otherToken));
+        // 篡改的token在读请求中也拒绝
+        assertNull(currentUser(interceptor, "GET", token + "x"));
+    }
+
+    private UserDTO currentUser(RefreshTokenInterceptor interceptor, String method, String token) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest(method, "/user/me");
+        request.addHeader("authorization", token);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        UserHolder.removeUser();
+        assertTrue(interceptor.preHandle(request, response, null));
+        return UserHolder.getUser();
+    }
+}
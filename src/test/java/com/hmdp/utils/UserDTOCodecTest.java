@@ -0,0 +1,92 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.bean.copier.CopyOptions;
+import com.hmdp.dto.UserDTO;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// 登录用户hash转换的单元测试，不启动spring容器，不需要redis
+class UserDTOCodecTest {
+
+    private static UserDTO user() {
+        UserDTO user = new UserDTO();
+        user.setId(1010L);
+        user.setNickName("小鱼同学");
+        user.setIcon("/imgs/blogs/blog1.jpg");
+        return user;
+    }
+
+    // 从redis读出的hash，字段名是新的数组
+    private static Map<byte[], byte[]> copy(Map<byte[], byte[]> hash) {
+        Map<byte[], byte[]> copy = new HashMap<>();
+        hash.forEach((field, value) -> copy.put(field.clone(), value.clone()));
+        return copy;
+    }
+
+    // 编码后解码得到相同的用户，值为null的字段不写入
+    @Test
+    void testRoundTrip() {
+        UserDTO user = user();
+        assertEquals(user, UserDTOCodec.decode(copy(UserDTOCodec.encode(user))));
+        UserDTO noIcon = user();
+        noIcon.setIcon(null);
+        Map<byte[], byte[]> hash = UserDTOCodec.encode(noIcon);
+        assertEquals(2, hash.size());
+        assertEquals(noIcon, UserDTOCodec.decode(copy(hash)));
+    }
+
+    // 能读出BeanUtil.beanToMap写入的旧格式，不认识的字段忽略
+    @Test
+    void testReadBeanUtilHash() {
+        UserDTO user = user();
+        Map<String, Object> beanHash = BeanUtil.beanToMap(user, new HashMap<>(),
+                CopyOptions.create().setIgnoreNullValue(true).setFieldValueEditor((name, value) -> value.toString()));
+        beanHash.put("unknown", "1");
+        Map<byte[], byte[]> hash = new HashMap<>();
+        beanHash.forEach((field, value) -> hash.put(field.getBytes(StandardCharsets.UTF_8),
+                value.toString().getBytes(StandardCharsets.UTF_8)));
+        assertEquals(user, UserDTOCodec.decode(hash));
+    }
+
+    // 对比BeanUtil反射和UserDTOCodec在登录用户和hash之间转换的速度和每次分配的内存，默认不运行，mvn test -Pbenchmark
+    @Test
+    @Tag("benchmark")
+    void testUserDTOCodecCost() {
+        UserDTO user = user();
+        Map<Object, Object> stringHash = new HashMap<>(BeanUtil.beanToMap(user, new HashMap<>(),
+                CopyOptions.create().setIgnoreNullValue(true).setFieldValueEditor((name, value) -> value.toString())));
+        Map<byte[], byte[]> byteHash = UserDTOCodec.encode(user);
+        mappingCost("BeanUtil.beanToMap", () -> BeanUtil.beanToMap(user, new HashMap<>(),
+                CopyOptions.create().setIgnoreNullValue(true).setFieldValueEditor((name, value) -> value.toString())));
+        mappingCost("UserDTOCodec.encode", () -> UserDTOCodec.encode(user));
+        mappingCost("BeanUtil.fillBeanWithMap", () -> BeanUtil.fillBeanWithMap(stringHash, new UserDTO(), false));
+        mappingCost("UserDTOCodec.decode", () -> UserDTOCodec.decode(byteHash));
+    }
+
+    private void mappingCost(String name, Supplier<Object> mapping) {
+        int iterations = 200_000;
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        // 预热
+        for (int i = 0; i < iterations; i++) {
+            mapping.get();
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId);
+        long begin = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            mapping.get();
+        }
+        long cost = System.nanoTime() - begin;
+        allocated = threadBean.getThreadAllocatedBytes(threadId) - allocated;
+        System.out.println(name + "：平均" + cost / iterations + "ns，每次分配" + allocated / iterations + "字节");
+    }
+}